@@ -0,0 +1,64 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Base of the benchmarks that need a corpus on disk. The corpus is written once per trial. */
+public abstract class CorpusBenchmark {
+    @Param("2000")
+    public int fileCount;
+
+    @Param("lognormal")
+    public String sizeDistribution;
+
+    @Param("4096")
+    public int meanSize;
+
+    @Param("0.3")
+    public double duplicateRatio;
+
+    @Param("0.9")
+    public double skew;
+
+    protected Path work;
+    protected Path config;
+    protected CorpusGenerator.Corpus corpus;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void writeCorpus() throws Throwable {
+        work = Files.createTempDirectory("mri-bench");
+        corpus = new CorpusGenerator(fileCount, sizeDistribution, meanSize, duplicateRatio, skew, 16, 42)
+                .generate(work.resolve("docs"));
+        config = Tools.emptyConfig(work);
+        out = Tools.silence();
+        prepare();
+    }
+
+    /** Anything else the benchmark needs once the corpus exists, for example an index. */
+    protected void prepare() throws Throwable {
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        System.setOut(out);
+        Tools.deleteRecursively(work);
+    }
+
+    /** Indexes the corpus with IndexFiles. */
+    protected void index(Path index, String... extraArgs) throws Throwable {
+        String[] base = {"-docs", corpus.root.toString(), "-index", index.toString(), "-create",
+                "-config", config.toString(), "-progress", "0", "-statsFile", work.resolve("stats.json").toString()};
+        String[] args = new String[base.length + extraArgs.length];
+        System.arraycopy(base, 0, args, 0, base.length);
+        System.arraycopy(extraArgs, 0, args, base.length, extraArgs.length);
+        Tools.INDEX_FILES.invokeExact(args);
+    }
+}
@@ -0,0 +1,154 @@
+package org.example.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic text corpus, without any network access. The words follow a Zipf distribution
+ * over a fixed vocabulary, so the tf-idf and deduplication tools see realistic term statistics.
+ *
+ * fileCount: number of files.
+ * sizeDistribution: fixed, uniform (1 to 2*meanSize) or lognormal, around meanSize bytes.
+ * duplicateRatio: fraction of files that are byte-identical copies of an earlier file.
+ * skew: fraction of the files written in the first folder, the rest are spread over the others.
+ */
+public class CorpusGenerator {
+    private static final int VOCABULARY = 20000;
+    private static final String[] WORDS = new String[VOCABULARY];
+    private static final double[] CUMULATIVE = new double[VOCABULARY];
+
+    static {
+        double total = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            WORDS[i] = word(i);
+            total += 1.0 / (i + 1);
+            CUMULATIVE[i] = total;
+        }
+        for (int i = 0; i < VOCABULARY; i++) {
+            CUMULATIVE[i] /= total;
+        }
+    }
+
+    private final int fileCount;
+    private final String sizeDistribution;
+    private final int meanSize;
+    private final double duplicateRatio;
+    private final double skew;
+    private final int folders;
+    private final long seed;
+
+    /** What was written. */
+    public static class Corpus {
+        public final Path root;
+        public final int files;
+        public final int duplicates;
+        public final long bytes;
+
+        Corpus(Path root, int files, int duplicates, long bytes) {
+            this.root = root;
+            this.files = files;
+            this.duplicates = duplicates;
+            this.bytes = bytes;
+        }
+    }
+
+    public CorpusGenerator(int fileCount, String sizeDistribution, int meanSize, double duplicateRatio, double skew, int folders, long seed) {
+        this.fileCount = fileCount;
+        this.sizeDistribution = sizeDistribution;
+        this.meanSize = meanSize;
+        this.duplicateRatio = duplicateRatio;
+        this.skew = skew;
+        this.folders = folders;
+        this.seed = seed;
+    }
+
+    public Corpus generate(Path root) throws IOException {
+        Random random = new Random(seed);
+        List<Path> unique = new ArrayList<>();
+        int duplicates = 0;
+        long bytes = 0;
+        for (int i = 0; i < fileCount; i++) {
+            int folder = random.nextDouble() < skew || folders == 1 ? 0 : 1 + random.nextInt(folders - 1);
+            Path dir = root.resolve(String.format("f%03d", folder));
+            Files.createDirectories(dir);
+            Path file = dir.resolve(String.format("doc%07d.txt", i));
+            if (!unique.isEmpty() && random.nextDouble() < duplicateRatio) {
+                Files.copy(unique.get(random.nextInt(unique.size())), file);
+                duplicates++;
+            } else {
+                writeText(file, size(random), random);
+                unique.add(file);
+            }
+            bytes += Files.size(file);
+        }
+        return new Corpus(root, fileCount, duplicates, bytes);
+    }
+
+    private int size(Random random) {
+        switch (sizeDistribution) {
+            case "fixed":
+                return meanSize;
+            case "uniform":
+                return 1 + random.nextInt(2 * meanSize);
+            case "lognormal":
+                //mean of exp(N(mu, 1)) is exp(mu + 0.5)
+                double mu = Math.log(meanSize) - 0.5;
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, Math.exp(mu + random.nextGaussian())));
+            default:
+                throw new IllegalArgumentException("unknown size distribution " + sizeDistribution);
+        }
+    }
+
+    private static void writeText(Path file, int size, Random random) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            int written = 0;
+            int wordsInLine = 0;
+            while (written < size) {
+                String word = WORDS[zipf(random)];
+                writer.write(word);
+                written += word.length() + 1;
+                if (++wordsInLine == 12) {
+                    writer.write('\n');
+                    wordsInLine = 0;
+                } else {
+                    writer.write(' ');
+                }
+            }
+        }
+    }
+
+    private static int zipf(Random random) {
+        int i = Arrays.binarySearch(CUMULATIVE, random.nextDouble());
+        return i >= 0 ? i : Math.min(VOCABULARY - 1, -i - 1);
+    }
+
+    //Deterministic pseudo words: a, b, ..., z, ba, bb, ...
+    private static String word(int i) {
+        StringBuilder word = new StringBuilder();
+        do {
+            word.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return word.reverse().toString();
+    }
+
+    /** Arguments: OUT_DIR [fileCount] [sizeDistribution] [meanSize] [duplicateRatio] [skew] */
+    public static void main(String[] args) throws IOException {
+        Path root = Paths.get(args[0]);
+        int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        String sizes = args.length > 2 ? args[2] : "lognormal";
+        int meanSize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+        double duplicateRatio = args.length > 4 ? Double.parseDouble(args[4]) : 0.3;
+        double skew = args.length > 5 ? Double.parseDouble(args[5]) : 0.9;
+        Corpus corpus = new CorpusGenerator(fileCount, sizes, meanSize, duplicateRatio, skew, 16, 42).generate(root);
+        System.out.println(corpus.files + " files, " + corpus.duplicates + " duplicates, " + corpus.bytes + " bytes in " + root);
+    }
+}
@@ -0,0 +1,21 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Documents and bytes processed, JMH reports them per second next to the score. */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Counters {
+    public long docs;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        docs = 0;
+        bytes = 0;
+    }
+}
@@ -0,0 +1,112 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deciding whether a file is indexed: extCompatible (extensions only) and the full filter set
+ * used by the walker. One operation is one file, no file is opened.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FilterBenchmark {
+    private static final String[] EXTENSIONS = {".txt", ".log", ".mp4", ".java", ".out", ".avi", ".md", ".csv", ""};
+
+    @Param("10000")
+    public int fileCount;
+
+    //extensions: the rules of the config.properties of the repository. default: also a glob and a size rule.
+    @Param({"default", "extensions"})
+    public String rules;
+
+    private Path[] paths;
+    private BasicFileAttributes attrs;
+    private MethodHandle accept;
+    private MethodHandle extCompatible;
+    private Object filters;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void compileFilters() throws Throwable {
+        Random random = new Random(42);
+        paths = new Path[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            paths[i] = Paths.get("docs", "f" + random.nextInt(16), "file" + i + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+        }
+        attrs = new SyntheticAttributes(4096);
+
+        String properties = "notFiles= .out .mp4 .mov .wmw .avi .loq\nonlyFiles= .txt\n";
+        if (rules.equals("default")) {
+            properties += "notGlobs= *.tmp **/build/**\nmaxSize= 1000000\n";
+        }
+        Path config = Files.createTempFile("mri-bench", ".properties");
+        Files.writeString(config, properties);
+        Properties props = new Properties();
+        try (Reader reader = new StringReader(properties)) {
+            props.load(reader);
+        }
+        Class<?> filterSet = Tools.tool("FileFilterSet");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        filters = lookup.findStatic(filterSet, "load", MethodType.methodType(filterSet, Path.class, Properties.class))
+                .invoke(config, props);
+        Files.delete(config);
+        accept = lookup.findVirtual(filterSet, "accept", MethodType.methodType(boolean.class, Path.class, BasicFileAttributes.class))
+                .asType(MethodType.methodType(boolean.class, Object.class, Path.class, BasicFileAttributes.class));
+        //extCompatible reads the filters of IndexFiles
+        lookup.findStaticSetter(Tools.tool("IndexFiles"), "filters", filterSet).invoke(filters);
+        extCompatible = lookup.findStatic(Tools.tool("IndexFiles"), "extCompatible", MethodType.methodType(boolean.class, Path.class));
+    }
+
+    private Path nextPath() {
+        Path path = paths[next];
+        next = next + 1 == paths.length ? 0 : next + 1;
+        return path;
+    }
+
+    @Benchmark
+    public boolean extCompatible() throws Throwable {
+        return (boolean) extCompatible.invokeExact(nextPath());
+    }
+
+    @Benchmark
+    public boolean filterSet() throws Throwable {
+        return (boolean) accept.invokeExact(filters, nextPath(), attrs);
+    }
+
+    /** Attributes of a regular file that does not exist. */
+    private static class SyntheticAttributes implements BasicFileAttributes {
+        private final long size;
+        private final FileTime time = FileTime.fromMillis(System.currentTimeMillis());
+
+        SyntheticAttributes(long size) {
+            this.size = size;
+        }
+
+        @Override public FileTime lastModifiedTime() { return time; }
+        @Override public FileTime lastAccessTime() { return time; }
+        @Override public FileTime creationTime() { return time; }
+        @Override public boolean isRegularFile() { return true; }
+        @Override public boolean isDirectory() { return false; }
+        @Override public boolean isSymbolicLink() { return false; }
+        @Override public boolean isOther() { return false; }
+        @Override public long size() { return size; }
+        @Override public Object fileKey() { return null; }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** IndexFiles over the whole corpus: walk, read, hash, analysis and addDocument. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class IndexingBenchmark extends CorpusBenchmark {
+    @Param("4")
+    public int numThreads;
+
+    @Benchmark
+    public void indexFiles(Counters counters) throws Throwable {
+        index(work.resolve("index"), "-numThreads", String.valueOf(numThreads));
+        counters.docs += corpus.files;
+        counters.bytes += corpus.bytes;
+    }
+
+    @Benchmark
+    public void indexFilesDedup(Counters counters) throws Throwable {
+        index(work.resolve("index"), "-numThreads", String.valueOf(numThreads), "-dedup");
+        counters.docs += corpus.files;
+        counters.bytes += corpus.bytes;
+    }
+}
@@ -0,0 +1,36 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** RemoveDuplicates over an index of the corpus, with duplicateRatio of its documents duplicated. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class RemoveDuplicatesBenchmark extends CorpusBenchmark {
+    private Path index;
+    private Path out;
+
+    @Override
+    protected void prepare() throws Throwable {
+        index = work.resolve("index");
+        out = work.resolve("indexNoDup");
+        index(index);
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteOutput() throws Exception {
+        Tools.deleteRecursively(out);
+    }
+
+    @Benchmark
+    public void removeDuplicates(Counters counters) throws Throwable {
+        Tools.REMOVE_DUPLICATES.invokeExact(new String[]{"-index", index.toString(), "-out", out.toString()});
+        counters.docs += corpus.files;
+    }
+}
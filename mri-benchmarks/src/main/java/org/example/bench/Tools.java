@@ -0,0 +1,64 @@
+package org.example.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Access to the tools of mri-indexer. They live in the default package, which cannot be imported,
+ * so they are looked up once as method handles.
+ */
+final class Tools {
+    static final MethodHandle INDEX_FILES = main("IndexFiles");
+    static final MethodHandle REMOVE_DUPLICATES = main("RemoveDuplicates");
+    static final MethodHandle TOP_TERMS_IN_DOCS = main("TopTermsInDocs");
+
+    private Tools() {
+    }
+
+    static Class<?> tool(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("mri-indexer is not in the classpath", e);
+        }
+    }
+
+    private static MethodHandle main(String className) {
+        try {
+            return MethodHandles.publicLookup().findStatic(tool(className), "main", MethodType.methodType(void.class, String[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Replaces System.out so the console output of the tools is not measured. Returns the old one. */
+    static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return out;
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /** Writes an empty config.properties, no files are filtered. */
+    static Path emptyConfig(Path dir) throws IOException {
+        Path config = dir.resolve("config.properties");
+        Files.writeString(config, "");
+        return config;
+    }
+}
@@ -0,0 +1,35 @@
+package org.example.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** TopTermsInDocs over every document of an index of the corpus built with term vectors. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class TopTermsBenchmark extends CorpusBenchmark {
+    @Param("10")
+    public int top;
+
+    private Path index;
+    private Path outfile;
+
+    @Override
+    protected void prepare() throws Throwable {
+        index = work.resolve("index");
+        outfile = work.resolve("topterms.txt");
+        index(index, "-contentsTermVectors");
+    }
+
+    @Benchmark
+    public void topTermsInDocs(Counters counters) throws Throwable {
+        Tools.TOP_TERMS_IN_DOCS.invokeExact(new String[]{"-index", index.toString(), "-top", String.valueOf(top), "-outfile", outfile.toString()});
+        counters.docs += corpus.files;
+        counters.bytes += corpus.bytes;
+    }
+}
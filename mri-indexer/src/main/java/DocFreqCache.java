@@ -0,0 +1,170 @@
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Document frequencies of the terms of one field, so each term is looked up in the terms dictionary
+ * once per run instead of once per document. The terms are kept as bytes in BytesRefHash with the df
+ * in an int[], no object per term.
+ *
+ * The size is bounded with two generations: when the current one is full it becomes the old one and
+ * the previous old one is dropped. A term found in the old generation is moved to the current one,
+ * so the frequent terms are never evicted. The terms are split in stripes by their hash, each with
+ * its own generations and lock.
+ */
+public class DocFreqCache {
+    //Each term belongs to one stripe by its hash, the threads only wait for the ones on the same stripe.
+    private static final int STRIPES = 16;
+
+    private final IndexReader reader;
+    private final String field;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class Generation {
+        final BytesRefHash terms = new BytesRefHash();
+        int[] df = new int[16];
+
+        int get(BytesRef term) {
+            int id = terms.find(term);
+            return id < 0 ? -1 : df[id];
+        }
+
+        void put(BytesRef term, int docFreq) {
+            int id = terms.add(term);
+            if (id < 0) {
+                id = -id - 1;
+            }
+            df = ArrayUtil.grow(df, id + 1);
+            df[id] = docFreq;
+        }
+
+        void clear() {
+            terms.clear();
+            terms.reinit();
+            df = new int[16];
+        }
+    }
+
+    /** The two generations of the terms of one stripe, guarded by the stripe. */
+    private static final class Stripe {
+        final int maxTerms;
+        Generation current = new Generation();
+        Generation old = new Generation();
+
+        Stripe(int maxTerms) {
+            this.maxTerms = maxTerms;
+        }
+
+        synchronized int get(BytesRef term) {
+            int df = current.get(term);
+            if (df >= 0) {
+                return df;
+            }
+            df = old.get(term);
+            if (df >= 0) {
+                put(term, df);
+            }
+            return df;
+        }
+
+        synchronized void put(BytesRef term, int df) {
+            if (current.terms.size() >= maxTerms / 2) {
+                Generation dropped = old;
+                old = current;
+                dropped.clear();
+                current = dropped;
+            }
+            current.put(term, df);
+        }
+
+        synchronized boolean full() {
+            return current.terms.size() >= maxTerms / 2;
+        }
+
+        synchronized void clear() {
+            current.clear();
+            old.clear();
+        }
+    }
+
+    /** maxTerms is the number of terms kept, counting both generations of all the stripes. */
+    public DocFreqCache(IndexReader reader, String field, int maxTerms) {
+        this.reader = reader;
+        this.field = field;
+        int perStripe = Math.max(2, maxTerms / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    private Stripe stripe(BytesRef term) {
+        return stripes[term.hashCode() & (STRIPES - 1)];
+    }
+
+    /**
+     * Loads the df of every term of the field in one sequential pass over the terms dictionary.
+     * Returns false, leaving the cache as lazy, when the field has more terms than the cache holds.
+     */
+    public boolean preload() throws IOException {
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null) {
+            return true;
+        }
+        long capacity = 0;
+        for (Stripe stripe : stripes) {
+            capacity += stripe.maxTerms / 2;
+        }
+        //size is -1 if the codec does not know it, then the terms are loaded until a stripe is full.
+        if (terms.size() > capacity) {
+            return false;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            Stripe stripe = stripe(term);
+            if (stripe.full()) {
+                for (Stripe s : stripes) {
+                    s.clear();
+                }
+                return false;
+            }
+            stripe.put(term, termsEnum.docFreq());
+        }
+        return true;
+    }
+
+    /**
+     * Document frequency of the term in the field. Safe to call from several threads; a lookup only
+     * locks the stripe of the term, and the dictionary is read outside any lock.
+     */
+    public int docFreq(BytesRef term) throws IOException {
+        Stripe stripe = stripe(term);
+        int df = stripe.get(term);
+        if (df >= 0) {
+            hits.increment();
+            return df;
+        }
+        df = reader.docFreq(new Term(field, term));
+        misses.increment();
+        stripe.put(term, df);
+        return df;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Filters of config.properties, compiled once at startup and applied by the walker with the
+ * attributes it already has, before any file is opened.
+ *
+ * onlyFiles / notFiles: extensions (".txt"). If both appear, the first one in the file is applied.
+ * onlyGlobs / notGlobs: glob patterns, matched against the file name, or against the path relative
+ * to the docs folder when they contain a '/'.
+ * notDirs: names of folders that are not walked at all (".git node_modules").
+ * minSize / maxSize: size in bytes.
+ * modifiedAfter / modifiedBefore: "2023-01-31" or "2023-01-31T10:15:30Z".
+ */
+public class FileFilterSet {
+    private Set<String> onlyExtensions;
+    private Set<String> notExtensions;
+    private final List<PathMatcher> onlyGlobs = new ArrayList<>();
+    private final List<PathMatcher> notGlobs = new ArrayList<>();
+    private boolean globsOnPath = false;
+    private Set<String> notDirs;
+    private long minSize = -1;
+    private long maxSize = -1;
+    private long modifiedAfter = Long.MIN_VALUE;
+    private long modifiedBefore = Long.MAX_VALUE;
+
+    /** Reads and compiles the filters of a properties file. */
+    public static FileFilterSet load(Path configFile, Properties properties) throws IOException {
+        FileFilterSet filters = new FileFilterSet();
+        String onlyFiles = properties.getProperty("onlyFiles");
+        String notFiles = properties.getProperty("notFiles");
+        if (onlyFiles != null && notFiles != null) {
+            //If the two rules are active, identify which is the first one that appears in
+            //config properties and apply it.
+            if (firstKey(configFile, "onlyFiles", "notFiles").equals("onlyFiles")) {
+                filters.onlyExtensions = split(onlyFiles);
+            } else {
+                filters.notExtensions = split(notFiles);
+            }
+        } else if (notFiles != null) {
+            filters.notExtensions = split(notFiles);
+        } else if (onlyFiles != null) {
+            filters.onlyExtensions = split(onlyFiles);
+        }
+
+        String onlyGlobs = properties.getProperty("onlyGlobs");
+        if (onlyGlobs != null) {
+            for (String glob : split(onlyGlobs)) {
+                filters.onlyGlobs.add(filters.compileGlob(glob));
+            }
+        }
+        String notGlobs = properties.getProperty("notGlobs");
+        if (notGlobs != null) {
+            for (String glob : split(notGlobs)) {
+                filters.notGlobs.add(filters.compileGlob(glob));
+            }
+        }
+        String notDirs = properties.getProperty("notDirs");
+        if (notDirs != null) {
+            filters.notDirs = split(notDirs);
+        }
+
+        if (properties.getProperty("minSize") != null)
+            filters.minSize = Long.parseLong(properties.getProperty("minSize").trim());
+        if (properties.getProperty("maxSize") != null)
+            filters.maxSize = Long.parseLong(properties.getProperty("maxSize").trim());
+        if (properties.getProperty("modifiedAfter") != null)
+            filters.modifiedAfter = parseTime(properties.getProperty("modifiedAfter").trim());
+        if (properties.getProperty("modifiedBefore") != null)
+            filters.modifiedBefore = parseTime(properties.getProperty("modifiedBefore").trim());
+        return filters;
+    }
+
+    /** Returns the key of the two that appears first in the properties file. */
+    private static String firstKey(Path configFile, String key1, String key2) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(key1)) {
+                    return key1;
+                } else if (line.startsWith(key2)) {
+                    return key2;
+                }
+            }
+        }
+        return key1;
+    }
+
+    private static Set<String> split(String value) {
+        Set<String> values = new HashSet<>();
+        for (String v : value.trim().split("\\s+")) {
+            if (!v.isEmpty()) {
+                values.add(v);
+            }
+        }
+        return values;
+    }
+
+    private PathMatcher compileGlob(String glob) {
+        if (glob.contains("/")) {
+            globsOnPath = true;
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        if (!glob.contains("/")) {
+            return path -> path.getFileName() != null && matcher.matches(path.getFileName());
+        }
+        return matcher;
+    }
+
+    private static long parseTime(String value) {
+        if (value.contains("T")) {
+            return Instant.parse(value).toEpochMilli();
+        }
+        return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /** Whether the files under this folder have to be walked. */
+    public boolean acceptDirectory(Path dir) {
+        return notDirs == null || dir.getFileName() == null || !notDirs.contains(dir.getFileName().toString());
+    }
+
+    /** Whether the file is indexed. relative is the path of the file inside the docs folder. */
+    public boolean accept(Path relative, BasicFileAttributes attrs) {
+        if (!acceptExtension(relative)) {
+            return false;
+        }
+        long size = attrs.size();
+        if (minSize >= 0 && size < minSize) {
+            return false;
+        }
+        if (maxSize >= 0 && size > maxSize) {
+            return false;
+        }
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (modified < modifiedAfter || modified >= modifiedBefore) {
+            return false;
+        }
+        if (!onlyGlobs.isEmpty() && !matchesAny(onlyGlobs, relative)) {
+            return false;
+        }
+        return notGlobs.isEmpty() || !matchesAny(notGlobs, relative);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path path) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Extension rules only. Files without extension are always accepted. */
+    public boolean acceptExtension(Path file) {
+        if (onlyExtensions == null && notExtensions == null) {
+            // We index all archives.
+            return true;
+        }
+        Path name = file.getFileName();
+        if (name == null) {
+            return true;
+        }
+        String fileName = name.toString();
+        int lastIndex = fileName.lastIndexOf('.');
+        if (lastIndex == -1) {
+            return true;
+        }
+        String extension = fileName.substring(lastIndex);
+        if (onlyExtensions != null) {
+            return onlyExtensions.contains(extension);
+        }
+        return !notExtensions.contains(extension);
+    }
+
+    /** Whether the globs need the relative path, if not the file name is enough. */
+    public boolean globsOnPath() {
+        return globsOnPath;
+    }
+}
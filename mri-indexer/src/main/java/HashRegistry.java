@@ -0,0 +1,144 @@
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Concurrent set of SHA-256 hashes. Only the first 128 bits of each hash are kept, as two longs in
+ * open addressing tables (about 21 bytes per hash, no object per entry). The set is split in
+ * stripes with their own lock so the indexing threads rarely wait for each other.
+ */
+public class HashRegistry {
+    private static final int STRIPES = 64;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public HashRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Registry with the hashes of the "hash" field of an index, read from its terms dictionary. */
+    public static HashRegistry fromIndex(IndexReader reader) throws IOException {
+        HashRegistry registry = new HashRegistry();
+        Terms terms = MultiTerms.getTerms(reader, "hash");
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                registry.add(Base64.getDecoder().decode(term.utf8ToString()));
+            }
+        }
+        return registry;
+    }
+
+    /** Adds a hash. Returns false if it was already in the set. */
+    public boolean add(byte[] hash) {
+        return add(toLong(hash, 0), toLong(hash, 8));
+    }
+
+    public boolean add(long hi, long lo) {
+        //The hash bits are already uniform, no need to mix them again.
+        Stripe stripe = stripes[(int) (hi >>> 58) & (STRIPES - 1)];
+        synchronized (stripe) {
+            return stripe.add(hi, lo);
+        }
+    }
+
+    public boolean contains(byte[] hash) {
+        long hi = toLong(hash, 0);
+        long lo = toLong(hash, 8);
+        Stripe stripe = stripes[(int) (hi >>> 58) & (STRIPES - 1)];
+        synchronized (stripe) {
+            return stripe.contains(hi, lo);
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (b[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /** Open addressing table of (hi, lo) pairs. The pair (0, 0) marks an empty slot. */
+    private static final class Stripe {
+        private long[] keys = new long[2 * 64];
+        private int size = 0;
+        private boolean hasZero = false;
+
+        boolean contains(long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                return hasZero;
+            }
+            int mask = keys.length / 2 - 1;
+            for (int slot = (int) lo & mask; ; slot = (slot + 1) & mask) {
+                long h = keys[2 * slot];
+                long l = keys[2 * slot + 1];
+                if (h == 0 && l == 0) {
+                    return false;
+                }
+                if (h == hi && l == lo) {
+                    return true;
+                }
+            }
+        }
+
+        boolean add(long hi, long lo) {
+            if (hi == 0 && lo == 0) {
+                if (hasZero) {
+                    return false;
+                }
+                hasZero = true;
+                size++;
+                return true;
+            }
+            if (contains(hi, lo)) {
+                return false;
+            }
+            //Keep the load below 0.75
+            if ((size + 1) * 4 > (keys.length / 2) * 3) {
+                grow();
+            }
+            insert(keys, hi, lo);
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            long[] old = keys;
+            long[] bigger = new long[old.length * 2];
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != 0 || old[i + 1] != 0) {
+                    insert(bigger, old[i], old[i + 1]);
+                }
+            }
+            keys = bigger;
+        }
+
+        private static void insert(long[] table, long hi, long lo) {
+            int mask = table.length / 2 - 1;
+            int slot = (int) lo & mask;
+            while (table[2 * slot] != 0 || table[2 * slot + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[2 * slot] = hi;
+            table[2 * slot + 1] = lo;
+        }
+    }
+}
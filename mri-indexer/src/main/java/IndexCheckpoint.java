@@ -0,0 +1,246 @@
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checkpoints of a long IndexFiles run, so that -resume can continue it after a crash or a kill.
+ * Every checkpointSeconds the writers are committed and the files processed before the commit are
+ * appended to INDEX_PATH/mri-checkpoint. The log is created by the first commit, when the index on
+ * disk is already the one of this run, and it is deleted when the run ends.
+ *
+ * A file is taken for the log before the commit starts, so every file in the log is in a commit. The
+ * files indexed between that moment and the commit are indexed again after a resume, with
+ * updateDocument, which leaves the same document.
+ */
+public class IndexCheckpoint {
+    public static final String FILE_NAME = "mri-checkpoint";
+    private static final int MAGIC = 0x4D524943;
+
+    private final Path file;
+    //Open mode of the interrupted run: true if it created the index.
+    private final boolean create;
+    //Files in the log that the walker has not seen yet in this run.
+    private final Map<String, IndexManifest.Entry> done = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong skipped = new AtomicLong();
+    private DataOutputStream out;
+    private FileOutputStream fileOut;
+    private long committed = 0;
+    //After finish() the files indexed by the watcher are not logged.
+    private volatile boolean finished = false;
+
+    private static final class Record {
+        final String path;
+        final IndexManifest.Entry entry;
+
+        Record(String path, IndexManifest.Entry entry) {
+            this.path = path;
+            this.entry = entry;
+        }
+    }
+
+    private IndexCheckpoint(Path indexPath, boolean create) {
+        this.file = indexPath.resolve(FILE_NAME);
+        this.create = create;
+    }
+
+    /** Starts the checkpoints of a new run, dropping the log of a previous run that was not resumed. */
+    public static IndexCheckpoint start(Path indexPath, boolean create) throws IOException {
+        discard(indexPath);
+        return new IndexCheckpoint(indexPath, create);
+    }
+
+    public static void discard(Path indexPath) throws IOException {
+        Files.deleteIfExists(indexPath.resolve(FILE_NAME));
+    }
+
+    /**
+     * The checkpoint of an interrupted run, or null if the index has none. A record cut by the crash
+     * was never committed, it is dropped so the records of the resumed run follow the last whole one.
+     */
+    public static IndexCheckpoint resume(Path indexPath) throws IOException {
+        Path file = indexPath.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        IndexCheckpoint checkpoint;
+        long valid;
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counting)) {
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a checkpoint file: " + file);
+                }
+                checkpoint = new IndexCheckpoint(indexPath, in.readBoolean());
+            } catch (EOFException e) {
+                //Cut while writing the header, before any file was logged.
+                return null;
+            }
+            valid = counting.count;
+            while (true) {
+                String path;
+                IndexManifest.Entry entry;
+                try {
+                    path = in.readUTF();
+                    long modified = in.readLong();
+                    long size = in.readLong();
+                    byte[] hash = null;
+                    int hashLength = in.readUnsignedByte();
+                    if (hashLength > 0) {
+                        hash = new byte[hashLength];
+                        in.readFully(hash);
+                    }
+                    entry = new IndexManifest.Entry(modified, size, hash);
+                } catch (EOFException e) {
+                    break;
+                }
+                checkpoint.done.put(path, entry);
+                valid = counting.count;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(valid);
+        }
+        checkpoint.committed = checkpoint.done.size();
+        return checkpoint;
+    }
+
+    /** Whether the interrupted run created the index instead of updating it. */
+    public boolean created() {
+        return create;
+    }
+
+    /** Files in the log of the interrupted run. */
+    public Map<String, IndexManifest.Entry> entries() {
+        return done;
+    }
+
+    /**
+     * Called by the walker: whether the file was committed before the interruption and has not
+     * changed since. A file that changed is indexed again.
+     */
+    public boolean done(String path, BasicFileAttributes attrs) {
+        IndexManifest.Entry entry = done.remove(path);
+        if (entry != null && entry.sameAttributes(attrs)) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public long skippedFiles() {
+        return skipped.get();
+    }
+
+    /** A file processed by a worker, it goes to the log with the next commit. */
+    public void processed(String path, IndexManifest.Entry entry) {
+        if (entry != null && !finished) {
+            pending.add(new Record(path, entry));
+        }
+    }
+
+    /** Commits the writers and logs the files processed before the commit. */
+    public synchronized void commit(IndexWriter[] writers) throws IOException {
+        List<Record> records = new ArrayList<>();
+        Record record;
+        while ((record = pending.poll()) != null) {
+            records.add(record);
+        }
+        boolean exists = out != null || Files.exists(file);
+        if (!exists && create) {
+            //The manifest of the replaced index would describe documents this commit removes. It goes
+            //before the commit: without it the next incremental run indexes everything again.
+            Files.deleteIfExists(file.resolveSibling(IndexManifest.FILE_NAME));
+        }
+        for (IndexWriter writer : writers) {
+            writer.commit();
+        }
+        if (out == null) {
+            fileOut = new FileOutputStream(file.toFile(), true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            if (!exists) {
+                out.writeInt(MAGIC);
+                out.writeBoolean(create);
+            }
+        }
+        for (Record r : records) {
+            out.writeUTF(r.path);
+            out.writeLong(r.entry.modified);
+            out.writeLong(r.entry.size);
+            if (r.entry.hash == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(r.entry.hash.length);
+                out.write(r.entry.hash);
+            }
+        }
+        out.flush();
+        fileOut.getFD().sync();
+        committed += records.size();
+        System.out.println("Checkpoint: " + committed + " files committed");
+    }
+
+    /**
+     * Files of the log under the docs folder that the walker did not find in this run, deleted
+     * since the interruption. The consumer deletes their documents.
+     */
+    public int removeUnseen(Path docDir, IndexManifest.PathConsumer consumer) throws IOException {
+        int removed = 0;
+        Iterator<String> it = done.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (Paths.get(path).startsWith(docDir)) {
+                consumer.accept(path);
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** The run ended, the log is not needed any more. */
+    public synchronized void finish() throws IOException {
+        finished = true;
+        pending.clear();
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        Files.deleteIfExists(file);
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
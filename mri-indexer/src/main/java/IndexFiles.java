@@ -5,14 +5,18 @@
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -23,8 +27,15 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 
 import javax.swing.plaf.synth.SynthLookAndFeel;
 
@@ -32,27 +43,92 @@ public class IndexFiles{
     public static int depth = -1;
     public static boolean contentsStored = false;
     public static boolean contentsTermVectors = false;
+    public static boolean compactSchema = false;
+    public static boolean compactStored = false;
+    //False when updating an index written before the hash had doc values, see hasHashDocValues.
+    public static boolean hashDocValues = true;
     public static Properties properties = new Properties();
-    public static String onlyLines;
-    public static String onlyFilesn;
-    public static String notFilesn;
+    //Lines of each file that are analyzed, -1 for all of them. Parsed once from config.properties.
+    public static int onlyLines = -1;
+    //What to do with the files whose first sniffBytes look binary: skip, metadata (no contents) or index.
+    public static String binaryPolicy = "index";
+    public static int sniffBytes = 8192;
+    //Bytes of each file that are analyzed, -1 for all of them. The hash always covers the whole file.
+    public static long maxContentBytes = -1;
+    public static FileFilterSet filters = new FileFilterSet();
+    public static long mmapMinBytes = -1;
+    public static boolean incremental = false;
+    public static boolean verifyHash = false;
+    public static IndexManifest manifest = new IndexManifest();
+    public static boolean dedup = false;
+    public static boolean dedupRefs = false;
+    public static HashRegistry hashes = new HashRegistry();
+    public static boolean verbose = false;
+    public static IndexingStats stats = new IndexingStats();
+    public static IndexCheckpoint checkpoint;
+    public static MemoryBudget memoryBudget;
+
+    /** Clears the options and state of a previous run in the same JVM, main can be called more than once. */
+    static void resetState() {
+        depth = -1;
+        contentsStored = false;
+        contentsTermVectors = false;
+        compactSchema = false;
+        compactStored = false;
+        hashDocValues = true;
+        properties = new Properties();
+        onlyLines = -1;
+        binaryPolicy = "index";
+        sniffBytes = 8192;
+        maxContentBytes = -1;
+        filters = new FileFilterSet();
+        mmapMinBytes = -1;
+        incremental = false;
+        verifyHash = false;
+        manifest = new IndexManifest();
+        dedup = false;
+        dedupRefs = false;
+        hashes = new HashRegistry();
+        verbose = false;
+        stats = new IndexingStats();
+        checkpoint = null;
+        memoryBudget = null;
+    }
 
     /** Index all text files under a directory. With their respective properties and other relevant information.*/
     public static void main(String[] args) throws Exception {
-        properties.load(new FileReader("mri-indexer/src/main/resources/config.properties"));
-        onlyLines = properties.getProperty("onlyLines");
-        onlyFilesn = properties.getProperty("onlyFiles");
-        notFilesn = properties.getProperty("notFiles");
+        resetState();
         String usage =
                 "java org.apache.lucene.demo.IndexFiles"
-                        + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update || -create] [-numThreads NUM_THREADS] [-depth DEPTH] [-contentsStored] [-contentsTermVectors]\n\n"
+                        + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update || -create] [-incremental [-verifyHash]] [-dedup [-dedupRefs]] [-numThreads NUM_THREADS] [-queueSize QUEUE_SIZE] [-depth DEPTH] [-contentsStored] [-contentsTermVectors] [-schema default|compact [-schemaStored]] [-config CONFIG_PATH]"
+                        + " [-mergePolicy tiered|logbytes|none] [-mergeThreads N] [-maxMergedSegmentMB MB] [-forceMerge MAX_SEGMENTS]"
+                        + " [-ramBufferMB MB] [-maxBufferedDocs N] [-ramBudget auto|MB]"
+                        + " [-progress SECONDS] [-statsFile STATS_JSON_PATH] [-verbose] [-watch [-commitSeconds SECONDS]] [-shards N] [-checkpointSeconds SECONDS] [-resume] [-timeout SECONDS]\n\n"
                         + "This indexes the documents in DOCS_PATH, creating a Lucene index"
                         + "in INDEX_PATH that can be searched with SearchFiles\n";
 
         String indexPath = "index";
         String docsPath = null;
+        String configPath = "mri-indexer/src/main/resources/config.properties";
         Integer numThreads = null;
+        Integer queueSize = null;
+        String mergePolicy = "tiered";
+        Integer mergeThreads = null;
+        Double maxMergedSegmentMB = null;
+        Integer forceMerge = null;
+        Double ramBufferMB = null;
+        Integer maxBufferedDocs = null;
+        String ramBudget = null;
+        int progressSeconds = 10;
+        String statsFile = null;
         boolean create = true;
+        boolean watch = false;
+        Integer shards = null;
+        String schema = null;
+        int commitSeconds = 10;
+        int checkpointSeconds = 300;
+        int timeoutSeconds = 0;
+        boolean resume = false;
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-index":
@@ -67,9 +143,29 @@ public class IndexFiles{
                 case "-create":
                     create = true;
                     break;
+                case "-incremental":
+                    //Only the new and changed files are indexed, the missing ones are deleted.
+                    incremental = true;
+                    create = false;
+                    break;
+                case "-verifyHash":
+                    verifyHash = true;
+                    break;
+                case "-dedup":
+                    //Files with the same contents as an already indexed file are not analyzed.
+                    dedup = true;
+                    break;
+                case "-dedupRefs":
+                    //Duplicates are indexed without contents, with duplicate = true.
+                    dedup = true;
+                    dedupRefs = true;
+                    break;
                 case "-numThreads":
                     numThreads = Integer.parseInt(args[++i]);
                     break;
+                case "-queueSize":
+                    queueSize = Integer.parseInt(args[++i]);
+                    break;
                 case "-depth":
                     depth = Integer.parseInt(args[++i]);
                     break;
@@ -79,6 +175,75 @@ public class IndexFiles{
                 case "-contentsTermVectors":
                     contentsTermVectors = true;
                     break;
+                case "-schema":
+                    //compact: dates and size as numbers (points and doc values) instead of strings.
+                    schema = args[++i];
+                    break;
+                case "-schemaStored":
+                    //With -schema compact, the numbers are also stored to show them in the results.
+                    compactStored = true;
+                    break;
+                case "-config":
+                    configPath = args[++i];
+                    break;
+                case "-mergePolicy":
+                    mergePolicy = args[++i];
+                    break;
+                case "-mergeThreads":
+                    mergeThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-maxMergedSegmentMB":
+                    maxMergedSegmentMB = Double.parseDouble(args[++i]);
+                    break;
+                case "-forceMerge":
+                    forceMerge = Integer.parseInt(args[++i]);
+                    break;
+                case "-ramBufferMB":
+                    //RAM of each writer before it flushes a segment, Lucene uses 16 MB.
+                    ramBufferMB = Double.parseDouble(args[++i]);
+                    break;
+                case "-maxBufferedDocs":
+                    //Also flush after this number of documents, whatever their size.
+                    maxBufferedDocs = Integer.parseInt(args[++i]);
+                    break;
+                case "-ramBudget":
+                    //RAM of all the writers together, auto for a quarter of the maximum heap.
+                    ramBudget = args[++i];
+                    break;
+                case "-progress":
+                    //Seconds between progress lines, 0 to disable them.
+                    progressSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-statsFile":
+                    statsFile = args[++i];
+                    break;
+                case "-verbose":
+                    //One line per file, as before the statistics.
+                    verbose = true;
+                    break;
+                case "-watch":
+                    //After indexing DOCS_PATH keep applying its changes until the process is stopped.
+                    watch = true;
+                    break;
+                case "-commitSeconds":
+                    commitSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-shards":
+                    //N independent indexes in INDEX_PATH/shard-i, see ShardedIndex.
+                    shards = Integer.parseInt(args[++i]);
+                    break;
+                case "-checkpointSeconds":
+                    //Seconds between the commits that -resume continues from, 0 to commit only at the end.
+                    checkpointSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-resume":
+                    //Continue an interrupted run from its last checkpoint, see IndexCheckpoint.
+                    resume = true;
+                    break;
+                case "-timeout":
+                    //Seconds until the walk is stopped and what was indexed is committed for -resume, 0 for no limit.
+                    timeoutSeconds = Integer.parseInt(args[++i]);
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
@@ -89,6 +254,22 @@ public class IndexFiles{
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
+        properties.load(new FileReader(configPath));
+        if (properties.getProperty("onlyLines") != null)
+            onlyLines = Integer.parseInt(properties.getProperty("onlyLines").trim());
+        if (properties.getProperty("binaryPolicy") != null)
+            binaryPolicy = properties.getProperty("binaryPolicy").trim();
+        if (!binaryPolicy.equals("skip") && !binaryPolicy.equals("metadata") && !binaryPolicy.equals("index"))
+            throw new IllegalArgumentException("unknown binaryPolicy " + binaryPolicy + ", it must be skip, metadata or index");
+        if (properties.getProperty("sniffBytes") != null)
+            sniffBytes = Integer.parseInt(properties.getProperty("sniffBytes").trim());
+        if (properties.getProperty("maxContentBytes") != null)
+            maxContentBytes = Long.parseLong(properties.getProperty("maxContentBytes").trim());
+        if (properties.getProperty("mmapMinBytes") != null)
+            mmapMinBytes = Long.parseLong(properties.getProperty("mmapMinBytes").trim());
+        //The filters are compiled once, the walker applies them before opening any file.
+        filters = FileFilterSet.load(Paths.get(configPath), properties);
+
         if (numThreads == null)
             numThreads = Runtime.getRuntime().availableProcessors();
 
@@ -109,13 +290,90 @@ public class IndexFiles{
         Date start = new Date();
         System.out.println("Indexing to directory '" + indexPath + "'...");
 
-        // Executor for the ThreadPool
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        if (resume) {
+            checkpoint = IndexCheckpoint.resume(Paths.get(indexPath));
+            if (checkpoint == null) {
+                System.out.println("No checkpoint in '" + indexPath + "', indexing from the start");
+            } else {
+                //The committed part of the interrupted run is kept and the rest is added to it.
+                System.out.println("Resuming from a checkpoint with " + checkpoint.entries().size() + " files");
+                create = false;
+            }
+        }
+
+        //An update keeps the shards of the index, the routing of the files depends on their number.
+        int existingShards = ShardedIndex.shardCount(Paths.get(indexPath));
+        if (shards == null) {
+            shards = create ? 0 : existingShards;
+        }
+        if (!create && shards != existingShards && ShardedIndex.exists(Paths.get(indexPath))) {
+            System.err.println("The index in '" + indexPath + "' has " + existingShards + " shards, use -shards " + existingShards);
+            System.exit(1);
+        }
+
+        //An update keeps the schema of the index, Lucene does not allow a field to change its type.
+        if (!create && ShardedIndex.exists(Paths.get(indexPath))) {
+            String existingSchema;
+            try (IndexReader reader = ShardedIndex.open(Paths.get(indexPath))) {
+                existingSchema = schemaOf(reader);
+                hashDocValues = hasHashDocValues(reader);
+            }
+            if (!hashDocValues) {
+                System.out.println("The index in '" + indexPath + "' has no doc values for the hash, the new documents will not have them either."
+                        + " Recreate it with -create so RemoveDuplicates does not need the stored fields");
+            }
+            if (schema == null) {
+                schema = existingSchema;
+            } else if (!schema.equals(existingSchema)) {
+                System.err.println("The index in '" + indexPath + "' has the " + existingSchema + " schema, use -schema " + existingSchema);
+                System.exit(1);
+            }
+        }
+        if (schema != null && !schema.equals("default") && !schema.equals("compact")) {
+            System.err.println("Usage: " + usage);
+            System.exit(1);
+        }
+        compactSchema = "compact".equals(schema);
 
-        //Each Folder goes to his respective thread.
-        ArrayList<Path> partialIndexPaths = new ArrayList<>();
-        for (Path folder : getFolders(docsPath)) {
-            Analyzer analyzer = new StandardAnalyzer();
+        Analyzer analyzer = new StandardAnalyzer();
+        //A resumed run that created the index starts with only the files of its checkpoint, the
+        //manifest and the documents of before belong to the index it replaced.
+        boolean resumedCreate = checkpoint != null && checkpoint.created();
+        if (!create && !resumedCreate) {
+            manifest = IndexManifest.load(Paths.get(indexPath));
+        }
+        if (dedup) {
+            //A duplicate is left out while its original is in the index, see restoreDuplicates.
+            manifest.trackHashes();
+        }
+        if (checkpoint != null) {
+            checkpoint.entries().forEach(manifest::put);
+        }
+        if (dedup && resumedCreate) {
+            //Not fromIndex: a file committed after the last checkpoint would be a duplicate of itself.
+            for (IndexManifest.Entry entry : checkpoint.entries().values()) {
+                if (entry.hash != null) hashes.add(entry.hash);
+            }
+        } else if (dedup && !create && ShardedIndex.exists(Paths.get(indexPath))) {
+            //The files already in the index also count as seen.
+            try (IndexReader reader = ShardedIndex.open(Paths.get(indexPath))) {
+                hashes = HashRegistry.fromIndex(reader);
+            }
+        }
+        //One writer shared by all the workers, IndexWriter is thread safe. With shards one per shard,
+        //each file goes to the writer of its shard.
+        IndexWriter[] writers = new IndexWriter[Math.max(1, shards)];
+        if (ramBudget != null) {
+            long budgetBytes = ramBudget.equals("auto")
+                    ? Runtime.getRuntime().maxMemory() / 4
+                    : (long) (Double.parseDouble(ramBudget) * 1024 * 1024);
+            memoryBudget = new MemoryBudget(budgetBytes);
+            if (ramBufferMB == null)
+                ramBufferMB = budgetBytes / (1024.0 * 1024.0) / writers.length;
+            System.out.println(String.format(Locale.ROOT, "RAM budget %.0f MB for %d writers, %.1f MB of buffer each (max heap %d MB)",
+                    budgetBytes / (1024.0 * 1024.0), writers.length, ramBufferMB, Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+        }
+        for (int i = 0; i < writers.length; i++) {
             IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
             if (create) {
                 // Create a new index in the directory, removing any
@@ -125,305 +383,1079 @@ public class IndexFiles{
                 // Add new documents to an existing index:
                 iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
             }
-            String foldersinpath = folder.toString().replaceFirst(docsPath, "");
-            Directory subindexpath = FSDirectory.open(Path.of(indexPath+"/temp/"+foldersinpath));
-            partialIndexPaths.add(Path.of(indexPath+"/temp/"+foldersinpath));
-            IndexWriter writer = new IndexWriter(subindexpath, iwc);
-            final Runnable worker = new WorkerThread(folder, writer);
-            executor.execute(worker);
-            }
+            configureMerges(iwc, mergePolicy, mergeThreads, maxMergedSegmentMB);
+            if (ramBufferMB != null)
+                iwc.setRAMBufferSizeMB(ramBufferMB);
+            if (maxBufferedDocs != null)
+                iwc.setMaxBufferedDocs(maxBufferedDocs);
+            Path shardPath = shards == 0 ? Paths.get(indexPath) : ShardedIndex.shard(Paths.get(indexPath), i);
+            writers[i] = new IndexWriter(FSDirectory.open(shardPath), iwc);
+        }
+        ShardedIndex.writeShardCount(Paths.get(indexPath), shards);
+        if (checkpoint == null) {
+            checkpoint = IndexCheckpoint.start(Paths.get(indexPath), create);
+        }
 
+        //Pipeline: one walker puts the files in a bounded queue and numThreads workers index them.
+        //When the queue is full the walker blocks until a worker takes a file.
+        if (queueSize == null)
+            queueSize = numThreads * 64;
+        BlockingQueue<FileEntry> queue = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads + 1);
+        WalkerThread walker = new WalkerThread(docDir, queue, numThreads);
+        executor.execute(walker);
+        for (int i = 0; i < numThreads; i++) {
+            executor.execute(new WorkerThread(queue, writers));
+        }
 
+        stats.startProgress(progressSeconds, System.out);
         executor.shutdown();
 
-        /* Wait up to 1 hour to finish all the previously submitted jobs.*/
+        /* Wait for all the previously submitted jobs, up to -timeout if given, with a checkpoint every checkpointSeconds.*/
+        boolean finished = false;
         try {
-            executor.awaitTermination(1, TimeUnit.HOURS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (!finished && (timeoutSeconds <= 0 || System.nanoTime() < deadline)) {
+                long wait = checkpointSeconds > 0 ? TimeUnit.SECONDS.toNanos(checkpointSeconds) : Long.MAX_VALUE;
+                if (timeoutSeconds > 0)
+                    wait = Math.min(wait, Math.max(0, deadline - System.nanoTime()));
+                finished = executor.awaitTermination(wait, TimeUnit.NANOSECONDS);
+                if (!finished && checkpointSeconds > 0)
+                    checkpoint.commit(writers);
+            }
+            if (!finished) {
+                //Only with -timeout, without it the loop waits until the workers end.
+                stats.warning("Indexing did not finish in the -timeout of " + timeoutSeconds + " seconds, the files not walked yet are not indexed, use -resume to index them");
+                //No shutdownNow: an interrupt inside addDocument closes the writer. The walker stops,
+                //puts the END of each worker and the workers index what is already queued.
+                walker.stop();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                //What was indexed is committed so the next run can resume from it.
+                checkpoint.commit(writers);
+            }
         } catch (final InterruptedException e) {
             e.printStackTrace();
             System.exit(-2);
         }
-
-
-        //Creating the general index for the subindex generated
-        System.out.println("Indices parciales creados, creando indice general: "+ indexPath);
-        Directory indexpath = FSDirectory.open(Path.of(indexPath));
-        IndexWriterConfig cnf = new IndexWriterConfig(new StandardAnalyzer());
-        if (create) {
-            // Create a new index in the directory, removing any
-            // previously indexed documents:
-            cnf.setOpenMode(OpenMode.CREATE);
-        } else {
-            // Add new documents to an existing index:
-            cnf.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        stats.stopProgress();
+        //An unfinished walk did not see every file: nothing is deleted as unseen and the manifest on
+        //disk is not replaced, a file missing from it is only indexed again by the next run.
+        if (finished && (checkpoint.skippedFiles() > 0 || !checkpoint.entries().isEmpty())) {
+            //Files of the checkpoint deleted since the interruption, an uninterrupted run would not have them.
+            int deleted = checkpoint.removeUnseen(docDir, path -> {
+                writerFor(writers, path).deleteDocuments(new Term("path", path));
+                manifest.removeUnder(path);
+            });
+            System.out.println(checkpoint.skippedFiles() + " files already indexed before the interruption, " + deleted + " files deleted");
+        }
+        if (finished && incremental) {
+            //Files indexed before that were not found now (deleted, or excluded by the filters).
+            int deleted = manifest.removeUnseen(docDir, path -> writerFor(writers, path).deleteDocuments(new Term("path", path)));
+            System.out.println(stats.unchangedFiles() + " files unchanged, " + deleted + " files deleted");
+        }
+        if (dedup) {
+            //After the deletes: a duplicate of a file deleted or changed in this run is indexed instead of it.
+            int restored = restoreDuplicates(writers);
+            System.out.println(stats.duplicateFiles() + " duplicated files not analyzed, "
+                    + restored + " indexed again because their original is no longer in the index");
+        }
+        if (finished && watch) {
+            //The first walk is committed so other processes can search it while the changes are watched.
+            for (IndexWriter writer : writers) {
+                writer.commit();
+            }
+            manifest.write(Paths.get(indexPath));
+            checkpoint.finish();
+            IndexWatcher watcher = new IndexWatcher(docDir, Paths.get(indexPath), writers, commitSeconds, numThreads);
+            Thread mainThread = Thread.currentThread();
+            //Ctrl+C: the watcher commits and main closes the writer as after a normal run.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                watcher.stop();
+                try {
+                    mainThread.join(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            watcher.run();
+        }
+        if (forceMerge != null) {
+            System.out.println("Merging the index into at most " + forceMerge + " segments");
+            for (IndexWriter writer : writers) {
+                if (writer.getConfig().getMergePolicy() == NoMergePolicy.INSTANCE) {
+                    //The segments written without merges are merged once at the end.
+                    writer.getConfig().setMergePolicy(new TieredMergePolicy());
+                }
+                writer.forceMerge(forceMerge);
+            }
+        }
+        for (IndexWriter writer : writers) {
+            writer.close();
         }
-        IndexWriter writerc = new IndexWriter(indexpath, cnf);
-        for (Path path : partialIndexPaths){
-            writerc.addIndexes(FSDirectory.open(path));
+        if (finished) {
+            manifest.write(Paths.get(indexPath));
+            checkpoint.finish();
         }
-        writerc.close();
-        deleteDirectory(new File(indexPath+"/temp"));
 
         Date end = new Date();
 
 
         //Reading the index created.
-        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Path.of(indexPath)))) {
+        try (IndexReader reader = ShardedIndex.open(Path.of(indexPath))) {
             System.out.println(
                     "Indexed "
                             + reader.numDocs()
                             + " documents in "
                             + (end.getTime() - start.getTime())
                             + " milliseconds");
-            if (reader.numDocs() > 100 && System.getProperty("smoketester") == null) {
-                throw new RuntimeException(
-                        "Are you (ab)using the toy vector dictionary? See the package javadocs to understand why you got this exception.");
+        }
+        System.out.println(stats.progressLine());
+        if (statsFile != null) {
+            stats.writeJson(Paths.get(statsFile));
+        } else {
+            System.out.println(stats.toJson());
+        }
+    }
+
+
+    /**
+     * Merges run in the background while the workers keep adding documents. The policy decides which
+     * segments are merged and the scheduler how many merges run at the same time.
+     */
+    static void configureMerges(IndexWriterConfig iwc, String mergePolicy, Integer mergeThreads, Double maxMergedSegmentMB) {
+        switch (mergePolicy) {
+            case "tiered":
+                TieredMergePolicy tiered = new TieredMergePolicy();
+                if (maxMergedSegmentMB != null)
+                    tiered.setMaxMergedSegmentMB(maxMergedSegmentMB);
+                iwc.setMergePolicy(tiered);
+                break;
+            case "logbytes":
+                LogByteSizeMergePolicy logBytes = new LogByteSizeMergePolicy();
+                if (maxMergedSegmentMB != null)
+                    logBytes.setMaxMergeMB(maxMergedSegmentMB);
+                iwc.setMergePolicy(logBytes);
+                break;
+            case "none":
+                //No merges while indexing, useful together with -forceMerge.
+                iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown merge policy " + mergePolicy);
+        }
+        if (mergeThreads != null) {
+            ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+            scheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+            iwc.setMergeScheduler(scheduler);
+        }
+    }
+
+
+    /**
+     * RAM budget of all the writers of a run, -ramBudget. Each writer gets its share as RAM buffer and
+     * flushes on its own, but the segments being flushed and the buffered deletes still count; when
+     * the writers together go over the budget the worker that notices flushes the biggest one, and
+     * the other workers wait for it instead of adding more documents.
+     */
+    static final class MemoryBudget {
+        final long bytes;
+
+        MemoryBudget(long bytes) {
+            this.bytes = bytes;
+        }
+
+        static long ramBytesUsed(IndexWriter[] writers) {
+            long used = 0;
+            for (IndexWriter writer : writers) {
+                used += writer.ramBytesUsed();
+            }
+            return used;
+        }
+
+        /** Returns when the writers are under the budget, flushing one of them if needed. */
+        void await(IndexWriter[] writers) throws IOException {
+            if (ramBytesUsed(writers) <= bytes) {
+                return;
+            }
+            synchronized (this) {
+                //Another worker may have flushed while this one waited.
+                if (ramBytesUsed(writers) <= bytes) {
+                    return;
+                }
+                IndexWriter biggest = writers[0];
+                for (IndexWriter writer : writers) {
+                    if (writer.ramBytesUsed() > biggest.ramBytesUsed()) biggest = writer;
+                }
+                stats.throttled();
+                biggest.flush();
             }
         }
     }
 
 
-    private static Path[] getFolders(String dir) throws IOException {
-        return Files.walk(Paths.get(dir), 1)
-                .skip(1)
-                .filter(Files::isDirectory)
-                .toArray(Path[]::new);
+    /** File found by the walker, with the attributes read during the walk. */
+    static class FileEntry {
+        final Path file;
+        final BasicFileAttributes attrs;
+
+        FileEntry(Path file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.attrs = attrs;
+        }
     }
 
+    //Marks the end of the walk, the walker puts one for each worker.
+    private static final FileEntry END = new FileEntry(null, null);
 
 
-    static class WorkerThread implements Runnable {
+    static class WalkerThread implements Runnable {
+
+        private final Path docDir;
+        private final BlockingQueue<FileEntry> queue;
+        private final int numWorkers;
+        //Set by main when the run times out: the walk ends and the workers index what is queued.
+        private volatile boolean stopped = false;
 
-        private final Path folder;
-        private final IndexWriter writer;
+        public WalkerThread(Path docDir, BlockingQueue<FileEntry> queue, int numWorkers) {
+            this.docDir = docDir;
+            this.queue = queue;
+            this.numWorkers = numWorkers;
+        }
 
-        public WorkerThread(Path folder, IndexWriter writer) {
-            this.folder = folder;
-            this.writer = writer;
+        /** Ends the walk without interrupting the workers, the writers never see an interrupt. */
+        public void stop() {
+            stopped = true;
         }
 
         @Override
         public void run() {
             try {
-                System.out.println("Soy el hilo "+ Thread.currentThread().getName()+" y voy a indexar las entradas de la carpeta: "+folder);
-                indexDocs(writer, folder);
-                writer.close();
-                System.out.println("Soy el hilo "+ Thread.currentThread().getName()+" y he acabado de indexar las entradas de la carpeta: "+folder);
+                if (verbose)
+                    System.out.println("Soy el hilo "+ Thread.currentThread().getName()+" y voy a recorrer la carpeta: "+docDir);
+                //depth counts from the docs folder, the files directly under it are depth 1.
+                int maxDepth = depth > 0 ? depth : Integer.MAX_VALUE;
+                Files.walkFileTree(docDir, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (stopped) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        if (!dir.equals(docDir) && !filters.acceptDirectory(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (stopped) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        if (!filters.accept(filters.globsOnPath() ? docDir.relativize(file) : file, attrs)) {
+                            stats.filtered();
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (checkpoint.done(file.toString(), attrs)) {
+                            //Committed before the interruption of the run being resumed.
+                            IndexManifest.Entry known = manifest.get(file.toString());
+                            if (known != null) manifest.markSeen(known);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (incremental) {
+                            IndexManifest.Entry known = manifest.get(file.toString());
+                            if (known != null) {
+                                manifest.markSeen(known);
+                                if (known.sameAttributes(attrs) && !verifyHash) {
+                                    stats.unchanged();
+                                    return FileVisitResult.CONTINUE;
+                                }
+                            }
+                        }
+                        try {
+                            queue.put(new FileEntry(file, attrs));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return FileVisitResult.TERMINATE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
 
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                        // don't stop the walk for files or folders that can't be read.
+                        stats.walkFailed(file, exc);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
             } catch (IOException e) {
-                e.printStackTrace();
+                stats.walkFailed(docDir, e);
+            } finally {
+                try {
+                    for (int i = 0; i < numWorkers; i++) {
+                        queue.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
-
     }
 
-    public static boolean extCompatible(Path file) throws IOException {
-        String fileName = file.getFileName().toString();
-        String extension = "";
-        int lastIndex = fileName.lastIndexOf('.');
-        if (lastIndex != -1) {
-            extension = fileName.substring(lastIndex);
-        }
-        if(!extension.equals("")){
-            //If possible we avoid folders.
-            //If the two rules are active, identify which is the first one that appears in 
-            //config properties and apply it. 
-            if (onlyFilesn != null && notFilesn != null) {
-                int onlyFilesIndex = -1;
-                int notFilesIndex = -1;
-                int lineCount = 0;
-                try (BufferedReader reader = new BufferedReader(new FileReader("mri-indexer/src/main/resources/config.properties"))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.startsWith("onlyFiles")) {
-                            onlyFilesIndex = lineCount;
-                        } else if (line.startsWith("notFiles")) {
-                            notFilesIndex = lineCount;
+
+    static class WorkerThread implements Runnable {
+
+        private final BlockingQueue<FileEntry> queue;
+        private final IndexWriter[] writers;
+
+        public WorkerThread(BlockingQueue<FileEntry> queue, IndexWriter[] writers) {
+            this.queue = queue;
+            this.writers = writers;
+        }
+
+        @Override
+        public void run() {
+            if (verbose)
+                System.out.println("Soy el hilo "+ Thread.currentThread().getName()+" y voy a indexar los ficheros de la cola");
+            int count = 0;
+            boolean update = writers[0].getConfig().getOpenMode() != OpenMode.CREATE;
+            try {
+                FileEntry entry;
+                while ((entry = queue.take()) != END) {
+                    try {
+                        if (indexFile(writers, entry, update)) {
+                            count++;
                         }
-                        lineCount++;
+                    } catch (IOException | RuntimeException e) {
+                        // don't index files that can't be read. A RuntimeException (Lucene, a bad
+                        // file) only fails this file, the worker keeps draining the queue.
+                        stats.failed(entry.file, e);
                     }
                 }
-                if (onlyFilesIndex<notFilesIndex) {
-                    String[] onlyFiles = onlyFilesn.split(" ");
-                    return Arrays.asList(onlyFiles).contains(extension);
-                } else {
-                    String[] notFiles = notFilesn.split(" ");
-                    return !Arrays.asList(notFiles).contains(extension);
-                }
-            //We look one by one
-            } else if (notFilesn != null) {
-                String[] notFiles = notFilesn.split(" ");
-                return !Arrays.asList(notFiles).contains(extension);
-            } else if (onlyFilesn != null) {
-                String[] onlyFiles = onlyFilesn.split(" ");
-                return Arrays.asList(onlyFiles).contains(extension);
-            } else {
-                // We index all archives.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (verbose)
+                System.out.println("Soy el hilo "+ Thread.currentThread().getName()+" y he acabado de indexar "+count+" ficheros");
+        }
+
+    }
+
+    /**
+     * Indexes a file found by the walker or the watcher, with the -verifyHash and -dedup checks. With
+     * update the document of the same path is replaced. Returns whether the index changed.
+     */
+    static boolean indexFile(IndexWriter[] writers, FileEntry entry, boolean update) throws IOException {
+        String path = entry.file.toString();
+        IndexWriter writer = writerFor(writers, path);
+        if (verifyHash && sameContents(entry)) {
+            stats.unchanged();
+            return false;
+        }
+        byte[] hash = null;
+        if (dedup) {
+            hash = hashForDedup(entry.file, entry.attrs.size());
+            if (isDuplicate(writer, entry, hash, update)) {
+                stats.duplicate();
+                if (checkpoint != null) checkpoint.processed(path, manifest.get(path));
                 return true;
             }
-        }return true;
+        }
+        if (memoryBudget != null)
+            memoryBudget.await(writers);
+        String hashString = indexDoc(writer, entry.file, entry.attrs.lastModifiedTime().toMillis(), entry.attrs, update, hash);
+        if (hashString == null) {
+            return false;
+        }
+        manifest.put(path, entry.attrs, hashString);
+        if (checkpoint != null) checkpoint.processed(path, manifest.get(path));
+        return true;
     }
 
+    /** "compact" if the dates of the index are numbers, "default" if they are strings. */
+    static String schemaOf(IndexReader reader) {
+        FieldInfo creationTime = FieldInfos.getMergedFieldInfos(reader).fieldInfo("creationTime");
+        return creationTime != null && creationTime.getPointDimensionCount() > 0 ? "compact" : "default";
+    }
 
-    public static void deleteDirectory(File directory) {
-        if (directory.exists()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        deleteDirectory(file);
-                    } else {
-                        file.delete();
-                    }
-                }
+    /**
+     * Whether the hash of the index has sorted doc values, or the index has no hash yet and the new
+     * documents will have them. Lucene does not allow adding them to a field that was indexed without
+     * them, so the documents added to an older index can not have them. Also used by RemoveDuplicates.
+     */
+    static boolean hasHashDocValues(IndexReader reader) {
+        FieldInfo hash = FieldInfos.getMergedFieldInfos(reader).fieldInfo("hash");
+        return hash == null || hash.getDocValuesType() == DocValuesType.SORTED;
+    }
+
+    /** Writer of the shard of a file. */
+    static IndexWriter writerFor(IndexWriter[] writers, String path) {
+        return writers.length == 1 ? writers[0] : writers[ShardedIndex.shardOf(path, writers.length)];
+    }
+
+    /** With -verifyHash, whether a file with the same modified time and size also has the same hash. */
+    private static boolean sameContents(FileEntry entry) throws IOException {
+        IndexManifest.Entry known = manifest.get(entry.file.toString());
+        if (known == null || known.hash == null || !known.sameAttributes(entry.attrs)) {
+            return false;
+        }
+        return Arrays.equals(known.hash, hashFile(entry.file, entry.attrs.size()));
+    }
+
+
+    /**
+     * With -dedup, checks the hash of a file against the hashes of all the files seen by any worker.
+     * A duplicate is not analyzed: with -dedupRefs it is indexed without contents, if not it is left
+     * out of the index. With update, the document the path had is replaced by the reference or
+     * deleted, its old contents are not kept.
+     */
+    private static boolean isDuplicate(IndexWriter writer, FileEntry entry, byte[] hash, boolean update) throws IOException {
+        String path = entry.file.toString();
+        if (hashes.add(hash)) {
+            return false;
+        }
+        if (update) {
+            //The hash can be the one of the document of this same path (or it is not known): the file
+            //is indexed again as any other changed file, not as a copy of itself.
+            IndexManifest.Entry known = manifest.get(path);
+            if (known != null && (known.hash == null || Arrays.equals(known.hash, hash))) {
+                return false;
+            }
+        }
+        String hashString = Base64.getEncoder().encodeToString(hash);
+        if (dedupRefs) {
+            DocTemplate template = templates.get();
+            template.setFile(entry.file, entry.attrs.lastModifiedTime().toMillis(), entry.attrs);
+            template.refHash.setStringValue(hashString);
+            template.refHashDocValues.setBytesValue(new BytesRef(hash));
+            if (update) {
+                writer.updateDocument(new Term("path", path), template.refDoc);
+            } else {
+                writer.addDocument(template.refDoc);
             }
-            directory.delete();
+        } else if (update) {
+            writer.deleteDocuments(new Term("path", path));
         }
+        manifest.put(path, entry.attrs, hashString);
+        //The original may be deleted later in the run, or may be a document of a file that no longer exists.
+        manifest.checkHash(hash);
+        return true;
     }
 
 
     /**
-     * Indexes the given file using the given writer, or if a directory is given, recurses over files
-     * and directories found under the given directory.
+     * With -dedup, a file is left out as a duplicate before it is known whether its original stays:
+     * the original can be deleted or changed later in the same run, or be the document of a file
+     * that is deleted as unseen at the end. Once the deletes are done (end of the walk, end of a
+     * burst of the watcher), each hash to check that has no live document with contents gets one of
+     * its copies in the manifest indexed again. Returns the number of files indexed again.
      */
-    public static void indexDocs(final IndexWriter writer, Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-           if (depth > 0){
-                Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<>() {
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            try {
-                            indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-                        } catch (@SuppressWarnings("unused") IOException e) {
-                            //e.printStackTrace(System.err);
+    static int restoreDuplicates(IndexWriter[] writers) throws IOException {
+        int restored = 0;
+        //A copy indexed again can have changed, then its old hash is checked in the next round.
+        while (true) {
+            Set<String> check = manifest.takeHashesToCheck();
+            if (check.isEmpty()) break;
+            Map<String, List<String>> copies = new HashMap<>();
+            manifest.forEach((path, entry) -> {
+                if (entry.hash == null) return;
+                String hash = Base64.getEncoder().encodeToString(entry.hash);
+                if (check.contains(hash)) copies.computeIfAbsent(hash, k -> new ArrayList<>()).add(path);
+            });
+            if (copies.isEmpty()) continue;
+            //Near-real-time reader: it has the deletes and updates not committed yet.
+            try (IndexReader reader = ShardedIndex.open(writers)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (Map.Entry<String, List<String>> e : copies.entrySet()) {
+                    Query original = new BooleanQuery.Builder()
+                            .add(new TermQuery(new Term("hash", e.getKey())), BooleanClause.Occur.FILTER)
+                            .add(new TermQuery(new Term("duplicate", "true")), BooleanClause.Occur.MUST_NOT)
+                            .build();
+                    if (searcher.count(original) > 0) continue;
+                    for (String path : e.getValue()) {
+                        if (restoreCopy(writers, path)) {
+                            restored++;
+                            break;
                         }
-                        return FileVisitResult.CONTINUE;
                     }
-                });
+                }
+            }
+        }
+        return restored;
+    }
+
+    /** Indexes with its contents a file that was left out as a duplicate. */
+    private static boolean restoreCopy(IndexWriter[] writers, String path) throws IOException {
+        Path file = Paths.get(path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (verbose)
+            System.out.println("indexing again " + path + ", its original is no longer in the index");
+        String hash = indexDoc(writerFor(writers, path), file, attrs.lastModifiedTime().toMillis(), attrs, true);
+        if (hash == null) {
+            return false;
+        }
+        manifest.put(path, attrs, hash);
+        if (checkpoint != null) checkpoint.processed(path, manifest.get(path));
+        return true;
+    }
+
+
+    /**
+     * With -dedup, the hash of a file before its analysis. A file of up to KEEP_MAX_BYTES stays in the
+     * buffer of the worker, indexDoc takes its contents from there instead of reading it again.
+     */
+    static byte[] hashForDedup(Path file, long size) throws IOException {
+        DocTemplate template = templates.get();
+        template.keptFile = null;
+        if (size > KEEP_MAX_BYTES) {
+            return hashFile(file, size);
+        }
+        MessageDigest digest = template.digest;
+        digest.reset();
+        int length = 0;
+        try (InputStream stream = openContents(file, size)) {
+            template.kept = ArrayUtil.grow(template.kept, (int) size + 1);
+            int n;
+            while ((n = stream.read(template.kept, length, template.kept.length - length)) != -1) {
+                length += n;
+                if (length == template.kept.length) {
+                    //The file grew after the walk.
+                    template.kept = ArrayUtil.grow(template.kept, length + 1);
+                }
             }
-            else{
-            Files.walkFileTree(path, new SimpleFileVisitor<>() {
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                            try {
-                                    indexDoc(writer, file, attrs.lastModifiedTime().toMillis());
-                            } catch (@SuppressWarnings("unused") IOException ignore) {
-                                ignore.printStackTrace(System.err);
-                                // don't index files that can't be read.
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-        }}else {
-            indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis());
         }
+        digest.update(template.kept, 0, length);
+        template.keptFile = file;
+        template.keptLength = length;
+        return digest.digest();
     }
 
+    //Files up to this size are read once with -dedup, bigger ones are read again by indexDoc.
+    private static final int KEEP_MAX_BYTES = 1 << 20;
 
 
-    /** Indexes a single document */
-    public static void indexDoc(IndexWriter writer, Path file, long lastModified) throws IOException {
-        if (extCompatible(file)) {
-            try (InputStream stream = Files.newInputStream(file)) {
-                Document doc = new Document();
+    /** SHA-256 of a file, read in the same way as when it is indexed. */
+    public static byte[] hashFile(Path file, long size) throws IOException {
+        DocTemplate template = templates.get();
+        MessageDigest digest = template.digest;
+        digest.reset();
+        try (InputStream stream = openContents(file, size)) {
+            int n;
+            while ((n = stream.read(template.buffer)) != -1) {
+                digest.update(template.buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
 
-                //Path
-                Field pathField = new StringField("path", file.toString(), Field.Store.YES);
-                doc.add(pathField);
 
-                //Modified
-                doc.add(new LongPoint("modified", lastModified));
+    /** Extension rules of config.properties, compiled in the FileFilterSet. Files without extension are accepted. */
+    public static boolean extCompatible(Path file) {
+        return filters.acceptExtension(file);
+    }
 
-                //Content
-                //We check the content stored
-                FieldType fieldType;
-                if (contentsStored) {
-                    fieldType = new FieldType(TextField.TYPE_STORED);
-                } else {
-                    fieldType = new FieldType(TextField.TYPE_NOT_STORED);
-                }
-                //Check TermsVectors
-                if (contentsTermVectors) {
-                    fieldType.setStoreTermVectors(true);
+
+    /** Indexes a single document. Returns the Base64 hash of the file, or null if it was not indexed. */
+    public static String indexDoc(IndexWriter writer, Path file, long lastModified) throws IOException {
+        if (!extCompatible(file)) {
+            return null;
+        }
+        return indexDoc(writer, file, lastModified, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+
+    /** Indexes a single document with the attributes already read by the walker. */
+    public static String indexDoc(IndexWriter writer, Path file, long lastModified, BasicFileAttributes attrs) throws IOException {
+        return indexDoc(writer, file, lastModified, attrs, writer.getConfig().getOpenMode() != OpenMode.CREATE);
+    }
+
+
+    /**
+     * Indexes a single document. With update the document of the same path is replaced, if not it is
+     * added, which is only right when the path can not be in the index yet.
+     */
+    public static String indexDoc(IndexWriter writer, Path file, long lastModified, BasicFileAttributes attrs, boolean update) throws IOException {
+        return indexDoc(writer, file, lastModified, attrs, update, null);
+    }
+
+
+    /**
+     * Indexes a single document whose hash may be already known, computed by hashForDedup. Then the
+     * contents are not hashed again, and if hashForDedup kept them they are not read again either.
+     */
+    static String indexDoc(IndexWriter writer, Path file, long lastModified, BasicFileAttributes attrs, boolean update, byte[] knownHash) throws IOException {
+        DocTemplate template = templates.get();
+        boolean kept = knownHash != null && file.equals(template.keptFile);
+        template.keptFile = null;
+        if (!extCompatible(file)) {
+            return null;
+        }
+        template.setFile(file, lastModified, attrs);
+        MessageDigest digest = template.digest;
+        digest.reset();
+        long start = System.nanoTime();
+        InputStream source = kept ? new ByteArrayInputStream(template.kept, 0, template.keptLength) : openContents(file, attrs.size());
+        //The file is read only once, the hash is computed while the analyzer consumes the contents.
+        try (IndexingStats.TimedDigestInputStream stream = new IndexingStats.TimedDigestInputStream(source, digest)) {
+            stream.on(knownHash == null);
+            //The first bytes tell text from binary. They are already in the digest, the analyzer gets
+            //them back in front of the rest of the stream.
+            int sniffed = stream.readNBytes(template.sniff, 0, template.sniff.length);
+            boolean binary = looksBinary(template.sniff, sniffed);
+            if (binary) {
+                stats.binary();
+                if (binaryPolicy.equals("skip")) {
+                    if (verbose)
+                        System.out.println("skipping binary " + file);
+                    if (update) {
+                        //It may have been text before, its old document goes.
+                        writer.deleteDocuments(new Term("path", file.toString()));
+                    }
+                    //Kept without a hash, so an incremental run does not sniff it again while it is unchanged.
+                    manifest.put(file.toString(), attrs, null);
+                    return null;
                 }
+            }
+            if (!binary) {
+                //The reader given to the analyzer is closed after the analysis, the hash still needs the stream.
+                ContentsInputStream contentsStream = new ContentsInputStream(template.sniff, sniffed, stream, maxContentBytes);
                 //Check OnlyLines
-                if (onlyLines != null) {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
-                        StringBuilder contents = new StringBuilder();
-                        String line;
-                        int lineCount = 0;
-                        while ((line = reader.readLine()) != null && lineCount < Integer.parseInt(onlyLines)) {
-                            contents.append(line).append("\n");
-                            lineCount++;
-                        }
-                        doc.add(new Field("contents", contents.toString(), fieldType));
+                if (onlyLines >= 0) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(contentsStream, StandardCharsets.UTF_8));
+                    StringBuilder contents = new StringBuilder();
+                    String line;
+                    int lineCount = 0;
+                    while (lineCount < onlyLines && (line = reader.readLine()) != null) {
+                        contents.append(line).append("\n");
+                        lineCount++;
                     }
-                } else {
-                    if (contentsStored) {
-                        doc.add(new Field("contents", new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n")), fieldType));
-                    } else {
-                        doc.add(new Field("contents", new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)), fieldType));
+                    if (lineCount == onlyLines && reader.readLine() != null) {
+                        contentsStream.truncated = true;
                     }
+                    template.contents.setStringValue(contents.toString());
+                } else if (contentsStored) {
+                    template.contents.setStringValue(new BufferedReader(new InputStreamReader(contentsStream, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n")));
+                } else {
+                    //The tokenizer already reads in blocks, no need for a BufferedReader.
+                    template.contents.setReaderValue(new InputStreamReader(contentsStream, StandardCharsets.UTF_8));
                 }
-
-                //information about the archive
-                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
-
-                //Hostname and thread
-                doc.add(new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES));
-                doc.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
-
-                //Type
-                String fileType = "otro";
-                if (attrs.isRegularFile()) {
-                    fileType = "regular file";
-                } else if (attrs.isDirectory()) {
-                    fileType = "directory";
-                } else if (attrs.isSymbolicLink()) {
-                    fileType = "symbolic link";
+                //With the reader value it is only known once the document is added, stats.truncated is
+                //counted by the size instead.
+                if (contentsStream.truncated || (maxContentBytes >= 0 && attrs.size() > maxContentBytes)) {
+                    stats.truncated();
                 }
-                doc.add(new StringField("type", fileType, Field.Store.YES));
-
-                //Size
-                long sizeKb = attrs.size() / 1024;
-                doc.add(new StoredField("sizeKb", sizeKb));
-
-                //Date
-                FileTime creationTime = attrs.creationTime();
-                FileTime lastAccessTime = attrs.lastAccessTime();
-                FileTime lastModifiedTime = attrs.lastModifiedTime();
-                doc.add(new StringField("creationTime", creationTime.toString(), Field.Store.YES));
-                doc.add(new StringField("lastAccessTime", lastAccessTime.toString(), Field.Store.YES));
-                doc.add(new StringField("lastModifiedTime", lastModifiedTime.toString(), Field.Store.YES));
-
-                // Date in Lucene Format
-                String creationTimeLucene = DateTools.dateToString(new Date(creationTime.toMillis()), DateTools.Resolution.MILLISECOND);
-                String lastAccessTimeLucene = DateTools.dateToString(new Date(lastAccessTime.toMillis()), DateTools.Resolution.MILLISECOND);
-                String lastModifiedTimeLucene = DateTools.dateToString(new Date(lastModifiedTime.toMillis()), DateTools.Resolution.MILLISECOND);
-                doc.add(new StringField("creationTimeLucene", creationTimeLucene, Field.Store.YES));
-                doc.add(new StringField("lastAccessTimeLucene", lastAccessTimeLucene, Field.Store.YES));
-                doc.add(new StringField("lastModifiedTimeLucene", lastModifiedTimeLucene, Field.Store.YES));
-
-                //HASH SHA-256 for the RemoveDuplicates
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] hash = digest.digest(Files.readAllBytes(file));
-                String hashString = Base64.getEncoder().encodeToString(hash);
-                Field hashField = new StringField("hash", hashString, Field.Store.YES);
-                doc.add(hashField);
-
-
-                if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-                    System.out.println("adding " + file);
-                    writer.addDocument(doc);
+            }
+            //A binary file with binaryPolicy metadata keeps the empty contents left by release.
+            if (knownHash != null) {
+                template.hash.setValue(knownHash);
+            } else {
+                template.hash.setStream(stream);
+            }
+
+            try {
+                if (!update) {
+                    if (verbose)
+                        System.out.println("adding " + file);
+                    writer.addDocument(template.doc);
                 } else {
 
-                    System.out.println("updating " + file);
-                    writer.updateDocument(new Term("path", file.toString()), doc);
+                    if (verbose)
+                        System.out.println("updating " + file);
+                    writer.updateDocument(new Term("path", file.toString()), template.doc);
                 }
-            } catch (NoSuchAlgorithmException e) {
+                long end = System.nanoTime();
+                stats.indexed(stream.bytes, stream.readNanos, stream.hashNanos, end - start);
+                return template.hash.stringValue();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                template.release();
+            }
+        }
+    }
+
+
+    //Each worker reuses its own documents, fields and digest for all its files.
+    private static final ThreadLocal<DocTemplate> templates = ThreadLocal.withInitial(DocTemplate::new);
+
+    //Looked up once, getLocalHost can block on the DNS.
+    private static String hostname;
+
+    static synchronized String hostname() {
+        if (hostname == null) {
+            try {
+                hostname = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
                 e.printStackTrace();
+                hostname = "unknown";
             }
         }
+        return hostname;
     }
-}
 
+
+    /** Type of the contents field for the options of this run. */
+    static FieldType contentsType() {
+        //We check the content stored
+        FieldType fieldType;
+        if (contentsStored) {
+            fieldType = new FieldType(TextField.TYPE_STORED);
+        } else {
+            fieldType = new FieldType(TextField.TYPE_NOT_STORED);
+        }
+        //Check TermsVectors
+        if (contentsTermVectors) {
+            fieldType.setStoreTermVectors(true);
+        }
+        fieldType.freeze();
+        return fieldType;
+    }
+
+
+    /**
+     * Document of a worker thread. The fields are created once and only their values change from one
+     * file to the next, Lucene does not keep any reference to them after addDocument returns.
+     */
+    static final class DocTemplate {
+        final Document doc = new Document();
+        //Document without contents for the duplicates of -dedupRefs, it shares the metadata fields.
+        final Document refDoc = new Document();
+
+        final Field path = new StringField("path", "", Field.Store.YES);
+        final LongPoint modified = new LongPoint("modified", 0L);
+        final Field contents;
+        final Field type = new StringField("type", "", Field.Store.YES);
+        final StoredField sizeKb = new StoredField("sizeKb", 0L);
+        final NumericDocValuesField size = new NumericDocValuesField("size", 0L);
+        final Field creationTime = new StringField("creationTime", "", Field.Store.YES);
+        final Field lastAccessTime = new StringField("lastAccessTime", "", Field.Store.YES);
+        final Field lastModifiedTime = new StringField("lastModifiedTime", "", Field.Store.YES);
+        final Field creationTimeLucene = new StringField("creationTimeLucene", "", Field.Store.YES);
+        final Field lastAccessTimeLucene = new StringField("lastAccessTimeLucene", "", Field.Store.YES);
+        final Field lastModifiedTimeLucene = new StringField("lastModifiedTimeLucene", "", Field.Store.YES);
+        final HashField hash;
+        final HashDocValuesField hashDocValues;
+        final Field refHash = new StringField("hash", "", Field.Store.YES);
+        final Field refHashDocValues = new SortedDocValuesField("hash", new BytesRef());
+        //-schema compact: the dates in millis and the size in bytes, each one a single number.
+        final LongValueFields compactModified = new LongValueFields("modified", false);
+        final LongValueFields compactSize = new LongValueFields("size", true);
+        final LongValueFields compactCreationTime = new LongValueFields("creationTime", true);
+        final LongValueFields compactLastAccessTime = new LongValueFields("lastAccessTime", true);
+        final LongValueFields compactLastModifiedTime = new LongValueFields("lastModifiedTime", true);
+
+        final MessageDigest digest;
+        final byte[] buffer = new byte[8192];
+        //Contents of the last file hashed by hashForDedup, until indexDoc takes them.
+        byte[] kept = new byte[0];
+        int keptLength;
+        Path keptFile;
+        //Nothing is sniffed when the binary files are indexed as text.
+        final byte[] sniff = new byte[binaryPolicy.equals("index") ? 0 : Math.max(0, sniffBytes)];
+
+        DocTemplate() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            hash = new HashField("hash", buffer);
+            hashDocValues = new HashDocValuesField("hash", hash);
+            FieldType contentsType = contentsType();
+            if (contentsType.stored() || onlyLines >= 0) {
+                contents = new Field("contents", "", contentsType);
+            } else {
+                contents = new Field("contents", Reader.nullReader(), contentsType);
+            }
+            Field hostnameField = new StringField("hostname", hostname(), Field.Store.YES);
+            Field threadField = new StringField("thread", Thread.currentThread().getName(), Field.Store.YES);
+
+            List<IndexableField> fileFields = new ArrayList<>(List.of(hostnameField, threadField, type));
+            if (compactSchema) {
+                //modified already has its point.
+                compactModified.addTo(fileFields);
+                compactSize.addTo(fileFields);
+                compactCreationTime.addTo(fileFields);
+                compactLastAccessTime.addTo(fileFields);
+                compactLastModifiedTime.addTo(fileFields);
+            } else {
+                fileFields.addAll(List.of(sizeKb, size,
+                        creationTime, lastAccessTime, lastModifiedTime,
+                        creationTimeLucene, lastAccessTimeLucene, lastModifiedTimeLucene));
+            }
+            doc.add(path);
+            doc.add(modified);
+            doc.add(contents);
+            refDoc.add(path);
+            refDoc.add(modified);
+            for (IndexableField field : fileFields) {
+                doc.add(field);
+                refDoc.add(field);
+            }
+            //HASH SHA-256 for the RemoveDuplicates
+            //It must be the last field, its value is only known once the contents are consumed.
+            doc.add(hash);
+            refDoc.add(refHash);
+            if (IndexFiles.hashDocValues) {
+                doc.add(hashDocValues);
+                refDoc.add(refHashDocValues);
+            }
+            refDoc.add(new StringField("duplicate", "true", Field.Store.YES));
+        }
+
+        /** Sets the values of the fields with the information about the archive. */
+        void setFile(Path file, long lastModified, BasicFileAttributes attrs) {
+            path.setStringValue(file.toString());
+            modified.setLongValue(lastModified);
+
+            //Type
+            String fileType = "otro";
+            if (attrs.isRegularFile()) {
+                fileType = "regular file";
+            } else if (attrs.isDirectory()) {
+                fileType = "directory";
+            } else if (attrs.isSymbolicLink()) {
+                fileType = "symbolic link";
+            }
+            type.setStringValue(fileType);
+
+            if (compactSchema) {
+                compactModified.setLongValue(lastModified);
+                compactSize.setLongValue(attrs.size());
+                compactCreationTime.setLongValue(attrs.creationTime().toMillis());
+                compactLastAccessTime.setLongValue(attrs.lastAccessTime().toMillis());
+                compactLastModifiedTime.setLongValue(attrs.lastModifiedTime().toMillis());
+                return;
+            }
+
+            //Size
+            sizeKb.setLongValue(attrs.size() / 1024);
+            size.setLongValue(attrs.size());
+
+            //Date, as text and in Lucene Format
+            setDate(creationTime, creationTimeLucene, attrs.creationTime());
+            setDate(lastAccessTime, lastAccessTimeLucene, attrs.lastAccessTime());
+            setDate(lastModifiedTime, lastModifiedTimeLucene, attrs.lastModifiedTime());
+        }
+
+        private static void setDate(Field text, Field lucene, FileTime time) {
+            text.setStringValue(time.toString());
+            lucene.setStringValue(DateTools.timeToString(time.toMillis(), DateTools.Resolution.MILLISECOND));
+        }
+
+        /** Drops the references to the contents of the last file. */
+        void release() {
+            if (contents.readerValue() != null) {
+                contents.setReaderValue(Reader.nullReader());
+            } else {
+                contents.setStringValue("");
+            }
+            hash.setStream(null);
+        }
+    }
+
+
+    /**
+     * The fields of a number in -schema compact: a point for range queries, doc values for sorting
+     * and, with -schemaStored, a stored copy. All of them share the name of the field.
+     */
+    static final class LongValueFields {
+        final LongPoint point;
+        final NumericDocValuesField docValues;
+        final StoredField stored;
+
+        LongValueFields(String name, boolean withPoint) {
+            point = withPoint ? new LongPoint(name, 0L) : null;
+            docValues = new NumericDocValuesField(name, 0L);
+            stored = compactStored ? new StoredField(name, 0L) : null;
+        }
+
+        void setLongValue(long value) {
+            if (point != null) point.setLongValue(value);
+            docValues.setLongValue(value);
+            if (stored != null) stored.setLongValue(value);
+        }
+
+        void addTo(List<IndexableField> fields) {
+            if (point != null) fields.add(point);
+            fields.add(docValues);
+            if (stored != null) fields.add(stored);
+        }
+    }
+
+
+    /**
+     * Whether the first bytes of a file look binary: a NUL byte, or more than a 10% of control
+     * characters that text does not have. Any ASCII-compatible encoding passes, UTF-8 or Latin-1;
+     * UTF-16 has NULs and is taken as binary.
+     */
+    static boolean looksBinary(byte[] bytes, int length) {
+        int control = 0;
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xff;
+            if (b == 0) {
+                return true;
+            }
+            if ((b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1b) || b == 0x7f) {
+                control++;
+            }
+        }
+        return control * 10 > length;
+    }
+
+
+    /**
+     * Contents given to the analyzer: the sniffed bytes, then the rest of the file up to maxBytes in
+     * total. Closing it does not close the file, the hash reads what is left.
+     */
+    static final class ContentsInputStream extends InputStream {
+        private final byte[] head;
+        private final int headLength;
+        private final InputStream in;
+        private int headPos = 0;
+        private long remaining;
+        boolean truncated = false;
+
+        ContentsInputStream(byte[] head, int headLength, InputStream in, long maxBytes) {
+            this.head = head;
+            this.headLength = headLength;
+            this.in = in;
+            this.remaining = maxBytes < 0 ? Long.MAX_VALUE : maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            //Byte by byte from the head or the file, without a buffer per call.
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = headPos < headLength ? head[headPos++] & 0xff : in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = (int) Math.min(len, remaining);
+            int n;
+            if (headPos < headLength) {
+                n = Math.min(len, headLength - headPos);
+                System.arraycopy(head, headPos, b, off, n);
+                headPos += n;
+            } else {
+                n = in.read(b, off, len);
+                if (n == -1) {
+                    return -1;
+                }
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    /**
+     * Opens the contents of a file. Files bigger than mmapMinBytes are read through a memory mapping
+     * instead of the heap, so the memory used per file does not depend on its size.
+     */
+    public static InputStream openContents(Path file, long size) throws IOException {
+        if (mmapMinBytes >= 0 && size >= mmapMinBytes) {
+            return new MappedFileInputStream(file);
+        }
+        return Files.newInputStream(file);
+    }
+
+
+    /**
+     * Stored "hash" field whose value is the SHA-256 of everything read from the stream. Lucene
+     * processes the fields in order, so when it asks for the value the contents are already consumed;
+     * whatever the analyzer left unread is read here.
+     */
+    static class HashField extends Field {
+
+        private final byte[] buffer;
+        private DigestInputStream stream;
+        private byte[] bytes;
+
+        HashField(String name, byte[] buffer) {
+            super(name, StringField.TYPE_STORED);
+            this.buffer = buffer;
+        }
+
+        /** Starts a new file, the value is computed again on the next call to stringValue. */
+        void setStream(DigestInputStream stream) {
+            this.stream = stream;
+            fieldsData = null;
+            bytes = null;
+        }
+
+        /** Sets a hash already computed, nothing is read. */
+        void setValue(byte[] hash) {
+            stream = null;
+            bytes = hash;
+            fieldsData = Base64.getEncoder().encodeToString(hash);
+        }
+
+        /** The hash itself, computed by stringValue. */
+        byte[] bytes() {
+            stringValue();
+            return bytes;
+        }
+
+        @Override
+        public String stringValue() {
+            if (fieldsData == null && stream != null) {
+                try {
+                    while (stream.read(buffer) != -1) {
+                        // only the digest needs these bytes
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                bytes = stream.getMessageDigest().digest();
+                fieldsData = Base64.getEncoder().encodeToString(bytes);
+            }
+            return (String) fieldsData;
+        }
+    }
+
+
+    /**
+     * Sorted doc values of the hash, with the 32 bytes of the SHA-256 of the HashField that comes
+     * before it in the document. RemoveDuplicates groups the documents by them without stored fields.
+     */
+    static class HashDocValuesField extends Field {
+
+        private final HashField hash;
+        private final BytesRef value = new BytesRef();
+
+        HashDocValuesField(String name, HashField hash) {
+            super(name, SortedDocValuesField.TYPE);
+            this.hash = hash;
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            value.bytes = hash.bytes();
+            value.offset = 0;
+            value.length = value.bytes.length;
+            return value;
+        }
+    }
+}
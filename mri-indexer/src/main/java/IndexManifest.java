@@ -0,0 +1,223 @@
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * State of every indexed file (modified time, size and hash) at the moment of the last commit.
+ * It is kept next to the index so an incremental run only has to look at the files that changed
+ * and can delete the documents of the files that no longer exist.
+ */
+public class IndexManifest {
+    public static final String FILE_NAME = "mri-manifest.bin";
+    private static final int MAGIC = 0x4D524931;
+
+    /** State of one file. modified = -1 means unknown, the file is always indexed again. */
+    static class Entry {
+        final long modified;
+        final long size;
+        final byte[] hash;
+        boolean seen = false;
+
+        Entry(long modified, long size, byte[] hash) {
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        boolean sameAttributes(BasicFileAttributes attrs) {
+            return modified == attrs.lastModifiedTime().toMillis() && size == attrs.size();
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    //With -dedup, the Base64 hashes whose document with contents may be gone: the old hash of a file
+    //that changed or was removed, and the hash of each file left out as a duplicate. Null if not tracked.
+    private Set<String> hashesToCheck = null;
+
+    /**
+     * Loads the manifest of an index. If the index has no manifest but exists, the paths of its
+     * documents are read so the files that no longer exist can still be deleted.
+     */
+    public static IndexManifest load(Path indexPath) throws IOException {
+        IndexManifest manifest = new IndexManifest();
+        Path file = indexPath.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a manifest file: " + file);
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    long modified = in.readLong();
+                    long size = in.readLong();
+                    byte[] hash = null;
+                    int hashLength = in.readUnsignedByte();
+                    if (hashLength > 0) {
+                        hash = new byte[hashLength];
+                        in.readFully(hash);
+                    }
+                    manifest.entries.put(path, new Entry(modified, size, hash));
+                }
+            }
+        } else if (ShardedIndex.exists(indexPath)) {
+            try (IndexReader reader = ShardedIndex.open(indexPath)) {
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    for (int i = 0; i < leaf.reader().maxDoc(); i++) {
+                        if (liveDocs != null && !liveDocs.get(i)) continue;
+                        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("path");
+                        leaf.reader().document(i, visitor);
+                        String path = visitor.getDocument().get("path");
+                        if (path != null) {
+                            manifest.entries.put(path, new Entry(-1, -1, null));
+                        }
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /** Writes the manifest, first to a temporary file so a crash never leaves half a manifest. */
+    public void write(Path indexPath) throws IOException {
+        Path file = indexPath.resolve(FILE_NAME);
+        Path tmp = indexPath.resolve(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.modified);
+                out.writeLong(entry.size);
+                if (entry.hash == null) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(entry.hash.length);
+                    out.write(entry.hash);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /** Starts collecting the hashes to check, see IndexFiles.restoreDuplicates. */
+    public void trackHashes() {
+        hashesToCheck = ConcurrentHashMap.newKeySet();
+    }
+
+    /** A hash whose document with contents may be gone. */
+    public void checkHash(byte[] hash) {
+        if (hashesToCheck != null && hash != null) {
+            hashesToCheck.add(Base64.getEncoder().encodeToString(hash));
+        }
+    }
+
+    /** The hashes to check collected since the last call. */
+    public Set<String> takeHashesToCheck() {
+        Set<String> taken = new HashSet<>();
+        if (hashesToCheck != null) {
+            Iterator<String> it = hashesToCheck.iterator();
+            while (it.hasNext()) {
+                taken.add(it.next());
+                it.remove();
+            }
+        }
+        return taken;
+    }
+
+    private void replaced(Entry previous, Entry entry) {
+        if (previous != null && !Arrays.equals(previous.hash, entry.hash)) {
+            checkHash(previous.hash);
+        }
+    }
+
+    public void forEach(BiConsumer<String, Entry> action) {
+        entries.forEach(action);
+    }
+
+    /** Records the state of a file that has just been indexed. hash is the Base64 of the "hash" field. */
+    public void put(String path, BasicFileAttributes attrs, String hash) {
+        Entry entry = new Entry(attrs.lastModifiedTime().toMillis(), attrs.size(),
+                hash == null ? null : Base64.getDecoder().decode(hash));
+        entry.seen = true;
+        replaced(entries.put(path, entry), entry);
+    }
+
+    /** Adds the state of a file known from elsewhere, it is not seen until the walker finds it. */
+    public void put(String path, Entry entry) {
+        replaced(entries.put(path, entry), entry);
+    }
+
+    /** Marks a file as still existing, so it is not deleted by removeUnseen. */
+    public void markSeen(Entry entry) {
+        entry.seen = true;
+    }
+
+    /**
+     * Removes the files under the given folder that were not seen during the walk and calls the
+     * consumer for each of them. Files of other folders indexed in the same index are kept.
+     */
+    public int removeUnseen(Path docDir, PathConsumer consumer) throws IOException {
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (!e.getValue().seen && Paths.get(e.getKey()).startsWith(docDir)) {
+                consumer.accept(e.getKey());
+                checkHash(e.getValue().hash);
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Removes a file, or every file under a folder. */
+    public void removeUnder(String path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            checkHash(removed.hash);
+        }
+        String prefix = path + java.io.File.separator;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                checkHash(e.getValue().hash);
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public interface PathConsumer {
+        void accept(String path) throws IOException;
+    }
+}
@@ -0,0 +1,270 @@
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.ReferenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * -watch mode of IndexFiles: after the first walk the writer is kept open and the changes under the
+ * docs folder are applied as they happen. The events of a burst (an editor saving, a copy of a
+ * folder) are coalesced by path, and when the burst ends each path is indexed, updated or deleted
+ * according to what is on disk at that moment. The near-real-time searcher is refreshed after each
+ * burst and the index is committed every commitSeconds.
+ */
+public class IndexWatcher {
+    //A burst ends when no event arrives in this time, or after MAX_DELAY_MS since its first event.
+    private static final long QUIET_MS = 200;
+    private static final long MAX_DELAY_MS = 2000;
+
+    private final Path docDir;
+    private final Path indexPath;
+    private final IndexWriter[] writers;
+    private final int commitSeconds;
+    private final int numThreads;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> watched = new HashSet<>();
+    //Folders whose events were lost, they are walked again.
+    private final Set<Path> overflowed = new HashSet<>();
+    private final ReferenceManager<IndexSearcher> searcherManager;
+    private volatile boolean running = true;
+
+    public IndexWatcher(Path docDir, Path indexPath, IndexWriter[] writers, int commitSeconds, int numThreads) throws IOException {
+        this.docDir = docDir;
+        this.indexPath = indexPath;
+        this.writers = writers;
+        this.commitSeconds = commitSeconds;
+        this.numThreads = numThreads;
+        this.watchService = docDir.getFileSystem().newWatchService();
+        this.searcherManager = ShardedIndex.searcherManager(writers, null);
+    }
+
+    /** Searcher over the changes already applied, committed or not. */
+    public ReferenceManager<IndexSearcher> searcherManager() {
+        return searcherManager;
+    }
+
+    /** Makes run return after the burst being applied and a last commit. */
+    public void stop() {
+        running = false;
+    }
+
+    /** Watches the docs folder until stop is called. The writers are committed but not closed. */
+    public void run() throws IOException {
+        register(docDir);
+        System.out.println("Watching " + keys.size() + " folders under '" + docDir + "'");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        long lastCommit = System.nanoTime();
+        int uncommitted = 0;
+        try {
+            while (running) {
+                Set<Path> changed = nextBurst();
+                if (!changed.isEmpty()) {
+                    uncommitted += apply(changed, executor);
+                    searcherManager.maybeRefresh();
+                }
+                if (uncommitted > 0 && System.nanoTime() - lastCommit >= TimeUnit.SECONDS.toNanos(commitSeconds)) {
+                    commit(uncommitted);
+                    uncommitted = 0;
+                    lastCommit = System.nanoTime();
+                }
+            }
+            if (uncommitted > 0) {
+                commit(uncommitted);
+            }
+        } finally {
+            executor.shutdown();
+            searcherManager.close();
+            watchService.close();
+        }
+    }
+
+    private void commit(int changes) throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.commit();
+        }
+        //Always, main writes it at the end: after a crash it has to match the last commit.
+        IndexFiles.manifest.write(indexPath);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            System.out.println("Committed " + changes + " changes, the index has "
+                    + searcher.getIndexReader().numDocs() + " documents");
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /** Paths with events, waiting for the first one as long as the watcher is running. */
+    private Set<Path> nextBurst() throws IOException {
+        Set<Path> changed = new LinkedHashSet<>();
+        long first = -1;
+        while (running) {
+            WatchKey key;
+            try {
+                //Short polls so stop is seen quickly while idle.
+                key = watchService.poll(first < 0 ? 500 : QUIET_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            if (key == null) {
+                if (first >= 0) break;
+                continue;
+            }
+            if (first < 0) first = System.nanoTime();
+            Path dir = keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (dir == null) continue;
+                if (event.kind() == OVERFLOW) {
+                    //Events were lost, the whole folder is checked again.
+                    changed.add(dir);
+                    overflowed.add(dir);
+                } else {
+                    changed.add(dir.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(keys.remove(key));
+            }
+            if (System.nanoTime() - first >= TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS)) break;
+        }
+        return changed;
+    }
+
+    /** Applies the state on disk of each changed path. Returns the number of documents changed. */
+    private int apply(Set<Path> changed, ExecutorService executor) throws IOException {
+        List<Path> files = new ArrayList<>();
+        int changes = 0;
+        for (Path path : changed) {
+            if (Files.isDirectory(path)) {
+                //A new folder (or one with lost events): all its files, the events before it was
+                //registered are not received. The events of a folder already watched are ignored.
+                if ((!watched.contains(path) || overflowed.remove(path))
+                        && withinDepth(path) && IndexFiles.filters.acceptDirectory(path)) {
+                    register(path);
+                    try (var walk = Files.walk(path)) {
+                        walk.filter(Files::isRegularFile).filter(this::withinDepth).forEach(files::add);
+                    }
+                }
+            } else if (Files.exists(path)) {
+                if (withinDepth(path)) files.add(path);
+            } else {
+                //A file or a whole folder was deleted, its documents are deleted by path. The files of
+                //a folder can be in any shard.
+                String deleted = path.toString();
+                watched.remove(path);
+                IndexFiles.writerFor(writers, deleted).deleteDocuments(new Term("path", deleted));
+                for (IndexWriter writer : writers) {
+                    writer.deleteDocuments(new PrefixQuery(new Term("path", deleted + File.separator)));
+                }
+                IndexFiles.manifest.removeUnder(deleted);
+                if (IndexFiles.verbose) System.out.println("deleting " + path);
+                changes++;
+            }
+        }
+
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Path file : files) {
+            futures.add(executor.submit(() -> index(file)));
+        }
+        for (Future<Boolean> future : futures) {
+            try {
+                if (future.get()) changes++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (IndexFiles.dedup) {
+            //The deletes and updates of the burst may have removed the original of a duplicate.
+            changes += IndexFiles.restoreDuplicates(writers);
+        }
+        return changes;
+    }
+
+    /**
+     * Indexes a file with the filters of the walker and the checks of the workers (-verifyHash,
+     * -dedup). The document is always updated, never added.
+     */
+    private boolean index(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return false;
+            }
+            if (!IndexFiles.filters.accept(IndexFiles.filters.globsOnPath() ? docDir.relativize(file) : file, attrs)) {
+                IndexFiles.stats.filtered();
+                return false;
+            }
+            IndexManifest.Entry known = IndexFiles.manifest.get(file.toString());
+            if (known != null && known.sameAttributes(attrs)) {
+                IndexFiles.stats.unchanged();
+                return false;
+            }
+            return IndexFiles.indexFile(writers, new IndexFiles.FileEntry(file, attrs), true);
+        } catch (NoSuchFileException e) {
+            //Deleted after the event, the next burst has its delete event.
+            return false;
+        } catch (IOException | RuntimeException e) {
+            //Only this file fails, the watcher goes on with the rest of the burst.
+            IndexFiles.stats.failed(file, e);
+            return false;
+        }
+    }
+
+    //depth counts from the docs folder as in the walker, the files directly under it are depth 1.
+    private boolean withinDepth(Path path) {
+        if (IndexFiles.depth <= 0 || path.equals(docDir)) {
+            return true;
+        }
+        int count = docDir.relativize(path).getNameCount();
+        return Files.isDirectory(path) ? count < IndexFiles.depth : count <= IndexFiles.depth;
+    }
+
+    /** Registers a folder and the folders under it, skipping the ones excluded by notDirs. */
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(docDir) && (!IndexFiles.filters.acceptDirectory(dir) || !withinDepth(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                //Registering a folder again returns the key it already has.
+                keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                watched.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                IndexFiles.stats.walkFailed(file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
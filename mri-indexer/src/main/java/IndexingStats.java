@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an indexing run. Each thread writes only to its own ThreadStats,
+ * so recording a file costs a few additions; the totals are computed when a report is printed.
+ */
+public class IndexingStats {
+    //The analysis runs inside addDocument and can not be timed apart from it, ANALYSIS is both.
+    public enum Stage { READ, HASH, ANALYSIS }
+
+    //Only the first errors are kept in the report, the rest are only counted.
+    private static final int MAX_ERRORS = 100;
+
+    private final long start = System.nanoTime();
+    private final List<ThreadStats> threads = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<ThreadStats> local = ThreadLocal.withInitial(this::register);
+    //Counters of the walker, not of a worker.
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder walkErrors = new LongAdder();
+    //Flushes forced by the RAM budget of the writers, -ramBudget.
+    private final LongAdder throttled = new LongAdder();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<String> warnings = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService progress;
+
+    /** Counters of one thread. Written only by that thread, read by the progress reporter. */
+    static final class ThreadStats {
+        final String name;
+        volatile long files;
+        volatile long bytes;
+        volatile long unchanged;
+        volatile long duplicates;
+        volatile long binary;
+        volatile long truncated;
+        volatile long failed;
+        final Histogram[] stages = new Histogram[Stage.values().length];
+
+        ThreadStats(String name) {
+            this.name = name;
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new Histogram();
+            }
+        }
+    }
+
+    /** Latency histogram with one bucket per power of two nanoseconds. */
+    static final class Histogram {
+        final long[] buckets = new long[64];
+        long count;
+        long sum;
+        long max;
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+            count++;
+            sum += nanos;
+            if (nanos > max) max = nanos;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        /** Upper bound of the bucket of the percentile, in nanoseconds. */
+        long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    private ThreadStats register() {
+        ThreadStats stats = new ThreadStats(Thread.currentThread().getName());
+        threads.add(stats);
+        return stats;
+    }
+
+    /** A file indexed by the current thread, with the time of each stage in nanoseconds. */
+    public void indexed(long bytes, long readNanos, long hashNanos, long totalNanos) {
+        ThreadStats stats = local.get();
+        stats.files++;
+        stats.bytes += bytes;
+        stats.stages[Stage.READ.ordinal()].record(readNanos);
+        stats.stages[Stage.HASH.ordinal()].record(hashNanos);
+        //What is left once the contents are read and hashed is the analysis and addDocument. The
+        //reads made by the tokenizer inside addDocument are already in readNanos.
+        stats.stages[Stage.ANALYSIS.ordinal()].record(totalNanos - readNanos - hashNanos);
+    }
+
+    public void unchanged() {
+        local.get().unchanged++;
+    }
+
+    public void duplicate() {
+        local.get().duplicates++;
+    }
+
+    /** A file taken as binary by its first bytes, skipped or indexed without contents. */
+    public void binary() {
+        local.get().binary++;
+    }
+
+    /** A file whose contents were analyzed only up to maxContentBytes or onlyLines. */
+    public void truncated() {
+        local.get().truncated++;
+    }
+
+    /** A worker that stopped to flush a writer because the writers were over the RAM budget. */
+    public void throttled() {
+        throttled.increment();
+    }
+
+    public void filtered() {
+        filtered.increment();
+    }
+
+    /** A file that could not be indexed by the current thread. */
+    public void failed(Path file, Exception e) {
+        local.get().failed++;
+        error(file, e);
+    }
+
+    /** A file or folder that could not be read during the walk. */
+    public void walkFailed(Path file, Exception e) {
+        walkErrors.increment();
+        error(file, e);
+    }
+
+    private void error(Path file, Exception e) {
+        if (errorCount.incrementAndGet() <= MAX_ERRORS) {
+            errors.add(file + ": " + e);
+        }
+    }
+
+    public void warning(String message) {
+        warnings.add(message);
+        System.err.println("WARNING: " + message);
+    }
+
+    public long unchangedFiles() {
+        return sum(t -> t.unchanged);
+    }
+
+    public long duplicateFiles() {
+        return sum(t -> t.duplicates);
+    }
+
+    private interface Counter {
+        long get(ThreadStats stats);
+    }
+
+    private long sum(Counter counter) {
+        long total = 0;
+        for (ThreadStats stats : threads) {
+            total += counter.get(stats);
+        }
+        return total;
+    }
+
+    /** Prints a progress line every interval seconds until stopProgress is called. */
+    public void startProgress(int seconds, PrintStream out) {
+        if (seconds <= 0) {
+            return;
+        }
+        progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> out.println(progressLine()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public void stopProgress() {
+        if (progress != null) {
+            progress.shutdownNow();
+        }
+    }
+
+    public String progressLine() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long files = sum(t -> t.files);
+        long bytes = sum(t -> t.bytes);
+        return String.format(Locale.ROOT, "[%.0fs] %d files (%.1f files/s), %.1f MB (%.1f MB/s), %d unchanged, %d duplicates, %d binary, %d filtered, %d failed",
+                seconds, files, files / seconds, bytes / 1e6, bytes / 1e6 / seconds,
+                sum(t -> t.unchanged), sum(t -> t.duplicates), sum(t -> t.binary), filtered.sum(), sum(t -> t.failed) + walkErrors.sum());
+    }
+
+    /** Summary of the run as a JSON object. */
+    public String toJson() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StringBuilder json = new StringBuilder();
+        json.append('{');
+        json.append("\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds));
+        json.append(",\"files\":").append(sum(t -> t.files));
+        json.append(",\"bytes\":").append(sum(t -> t.bytes));
+        json.append(",\"unchanged\":").append(sum(t -> t.unchanged));
+        json.append(",\"duplicates\":").append(sum(t -> t.duplicates));
+        json.append(",\"binary\":").append(sum(t -> t.binary));
+        json.append(",\"truncated\":").append(sum(t -> t.truncated));
+        json.append(",\"filtered\":").append(filtered.sum());
+        json.append(",\"failed\":").append(sum(t -> t.failed));
+        json.append(",\"walkErrors\":").append(walkErrors.sum());
+        json.append(",\"throttledFlushes\":").append(throttled.sum());
+
+        List<ThreadStats> workers = new ArrayList<>(threads);
+        Histogram[] totals = new Histogram[Stage.values().length];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = new Histogram();
+            for (ThreadStats stats : workers) {
+                totals[i].add(stats.stages[i]);
+            }
+        }
+        json.append(",\"latencyMicros\":{");
+        for (Stage stage : Stage.values()) {
+            Histogram h = totals[stage.ordinal()];
+            if (stage.ordinal() > 0) json.append(',');
+            json.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{");
+            json.append("\"count\":").append(h.count);
+            json.append(",\"mean\":").append(h.count == 0 ? 0 : h.sum / h.count / 1000);
+            json.append(",\"p50\":").append(h.percentile(0.50) / 1000);
+            json.append(",\"p95\":").append(h.percentile(0.95) / 1000);
+            json.append(",\"p99\":").append(h.percentile(0.99) / 1000);
+            json.append(",\"max\":").append(h.max / 1000);
+            json.append('}');
+        }
+        json.append('}');
+
+        json.append(",\"threads\":[");
+        for (int i = 0; i < workers.size(); i++) {
+            ThreadStats stats = workers.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"name\":");
+            Json.appendString(json, stats.name);
+            json.append(",\"files\":").append(stats.files);
+            json.append(",\"bytes\":").append(stats.bytes);
+            json.append(",\"unchanged\":").append(stats.unchanged);
+            json.append(",\"duplicates\":").append(stats.duplicates);
+            json.append(",\"binary\":").append(stats.binary);
+            json.append(",\"truncated\":").append(stats.truncated);
+            json.append(",\"failed\":").append(stats.failed);
+            json.append('}');
+        }
+        json.append(']');
+
+        json.append(",\"errorCount\":").append(errorCount.get());
+        json.append(",\"errors\":");
+        appendStrings(json, errors);
+        json.append(",\"warnings\":");
+        appendStrings(json, warnings);
+        json.append('}');
+        return json.toString();
+    }
+
+    private static void appendStrings(StringBuilder json, Iterable<String> values) {
+        json.append('[');
+        boolean first = true;
+        for (String value : values) {
+            if (!first) json.append(',');
+            Json.appendString(json, value);
+            first = false;
+        }
+        json.append(']');
+    }
+
+    public void writeJson(Path file) throws IOException {
+        Files.writeString(file, toJson());
+    }
+
+
+    /**
+     * DigestInputStream that measures the time spent reading the file and hashing it, and counts the
+     * bytes read. The clock is read twice per block, not per byte.
+     */
+    static class TimedDigestInputStream extends DigestInputStream {
+        long readNanos;
+        long hashNanos;
+        long bytes;
+        private boolean digesting = true;
+
+        TimedDigestInputStream(InputStream stream, MessageDigest digest) {
+            super(stream, digest);
+        }
+
+        @Override
+        public void on(boolean on) {
+            super.on(on);
+            digesting = on;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long t0 = System.nanoTime();
+            int b = in.read();
+            long t1 = System.nanoTime();
+            if (b != -1) {
+                if (digesting) digest.update((byte) b);
+                bytes++;
+            }
+            hashNanos += System.nanoTime() - t1;
+            readNanos += t1 - t0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long t0 = System.nanoTime();
+            int n = in.read(b, off, len);
+            long t1 = System.nanoTime();
+            if (n > 0) {
+                if (digesting) digest.update(b, off, n);
+                bytes += n;
+            }
+            hashNanos += System.nanoTime() - t1;
+            readNanos += t1 - t0;
+            return n;
+        }
+    }
+}
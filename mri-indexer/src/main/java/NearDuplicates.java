@@ -0,0 +1,318 @@
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class NearDuplicates {
+    //Finds the documents whose sets of terms are almost the same (copies with small edits), without
+    //comparing every pair: each document gets a MinHash signature computed from its term vector, and
+    //only the documents that share a band of the signature (LSH) are compared.
+    //Needs an index created with IndexFiles -contentsTermVectors.
+    public static void main(String[] args) throws IOException {
+        String indexPath = "index";
+        String field = "contents";
+        String outfile = null;
+        double threshold = 0.8;
+        int bands = 16;
+        int rows = 8;
+        boolean delete = false;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String usage = "Arguments: [-index INDEX_PATH] [-threshold JACCARD] [-bands B] [-rows R]"
+                + " [-numThreads N] [-outfile OUTFILE_PATH] [-delete]\n\n";
+        //The signature has bands * rows hashes. Two documents with Jaccard similarity s share at least
+        //one band with probability 1 - (1 - s^rows)^bands, with the default 16 x 8 it is 0.96 for s = 0.8
+        //and 0.03 for s = 0.5.
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "-bands":
+                    bands = Integer.parseInt(args[++i]);
+                    break;
+                case "-rows":
+                    rows = Integer.parseInt(args[++i]);
+                    break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-outfile":
+                    outfile = args[++i];
+                    break;
+                case "-delete":
+                    //Every document of a cluster but the first one is deleted from INDEX_PATH.
+                    delete = true;
+                    break;
+                default:
+                    System.out.println("Usage: " + usage);
+                    throw new IllegalArgumentException("unknown parameter " + args[i]);
+            }
+        }
+        if (threshold <= 0 || threshold > 1 || bands <= 0 || rows <= 0) {
+            System.out.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        //A sharded index is compared as a whole, with global docIDs.
+        List<Path> directories = ShardedIndex.directories(Paths.get(indexPath));
+        IndexWriter[] writers = null;
+        IndexReader reader;
+        if (delete) {
+            writers = new IndexWriter[directories.size()];
+            for (int i = 0; i < writers.length; i++) {
+                //No merges while deleting, the docIDs of the reader must stay valid for tryDeleteDocument.
+                IndexWriterConfig iwc = new IndexWriterConfig();
+                iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+                iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+                writers[i] = new IndexWriter(FSDirectory.open(directories.get(i)), iwc);
+            }
+            reader = ShardedIndex.open(writers);
+        } else {
+            reader = ShardedIndex.open(Paths.get(indexPath));
+        }
+
+        long start = System.currentTimeMillis();
+        int[][] signatures = signatures(reader, field, bands * rows, numThreads);
+        int withVectors = 0;
+        for (int[] signature : signatures) {
+            if (signature != null) withVectors++;
+        }
+        if (withVectors == 0) {
+            System.out.println("No document has term vectors of \"" + field + "\", index with -contentsTermVectors");
+        }
+        int[] clusters = cluster(signatures, bands, rows, threshold);
+
+        Writer out = outfile == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out))
+                : new BufferedWriter(new FileWriter(outfile));
+        int clusterCount = 0;
+        int deleted = 0;
+        Map<Integer, List<Integer>> members = new HashMap<>();
+        for (int doc = 0; doc < clusters.length; doc++) {
+            if (signatures[doc] != null && clusters[doc] != doc) {
+                members.computeIfAbsent(clusters[doc], k -> new ArrayList<>()).add(doc);
+            }
+        }
+        for (int first = 0; first < clusters.length; first++) {
+            List<Integer> docs = members.get(first);
+            if (docs == null) continue;
+            clusterCount++;
+            out.write("cluster " + clusterCount + " (" + (docs.size() + 1) + " documents)\n");
+            out.write(String.format(Locale.ROOT, "  %-8d %s%n", first, path(reader, first)));
+            for (int doc : docs) {
+                out.write(String.format(Locale.ROOT, "  %-8d %s  similarity: %.3f%n",
+                        doc, path(reader, doc), similarity(signatures[first], signatures[doc])));
+                if (writers != null) {
+                    if (ShardedIndex.tryDeleteDocument(writers, reader, doc) == -1) {
+                        throw new IllegalStateException("could not delete document " + doc);
+                    }
+                    deleted++;
+                }
+            }
+        }
+        out.flush();
+        if (outfile != null) {
+            out.close();
+        }
+        reader.close();
+        if (writers != null) {
+            for (IndexWriter writer : writers) {
+                writer.close();
+            }
+        }
+
+        System.out.println(withVectors + " documents compared, " + clusterCount + " clusters of near duplicates"
+                + (delete ? ", " + deleted + " documents deleted" : "")
+                + " in " + (System.currentTimeMillis() - start) + " milliseconds");
+    }
+
+    //Documents of the index read by one task.
+    private static final int CHUNK = 4096;
+
+    /**
+     * MinHash signature of each live document with a term vector, null for the rest. Each term is
+     * hashed once to 64 bits and the k hash functions mix that value with k independent random seeds,
+     * so the k minimums behave as k independent permutations.
+     */
+    static int[][] signatures(IndexReader reader, String field, int k, int numThreads) throws IOException {
+        int[][] signatures = new int[reader.maxDoc()][];
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        long[] seeds = seeds(k);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < reader.maxDoc(); start += CHUNK) {
+                int from = start;
+                int to = Math.min(reader.maxDoc(), start + CHUNK);
+                futures.add(executor.submit(() -> {
+                    for (int doc = from; doc < to; doc++) {
+                        if (liveDocs != null && !liveDocs.get(doc)) continue;
+                        Terms terms = reader.getTermVector(doc, field);
+                        if (terms == null) continue;
+                        signatures[doc] = signature(terms, seeds);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return signatures;
+    }
+
+    private static int[] signature(Terms terms, long[] seeds) throws IOException {
+        int k = seeds.length;
+        int[] signature = new int[k];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            long h = ((long) StringHelper.murmurhash3_x86_32(term, 0x5bd1e995) << 32)
+                    | (StringHelper.murmurhash3_x86_32(term, 0x1b873593) & 0xFFFFFFFFL);
+            for (int i = 0; i < k; i++) {
+                int value = (int) mix(h ^ seeds[i]);
+                if (value < signature[i]) signature[i] = value;
+            }
+        }
+        return signature;
+    }
+
+    //The seeds are fixed, the signatures of two runs are comparable.
+    private static long[] seeds(int k) {
+        long[] seeds = new long[k];
+        SplittableRandom random = new SplittableRandom(0x2545F4914F6CDD1DL);
+        for (int i = 0; i < k; i++) {
+            seeds[i] = random.nextLong();
+        }
+        return seeds;
+    }
+
+    //Finalizer of MurmurHash3 (fmix64), every bit of the input changes half of the output bits.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Estimated Jaccard similarity of two documents: the fraction of equal minimums. */
+    static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) equal++;
+        }
+        return (double) equal / a.length;
+    }
+
+    /**
+     * Groups the documents whose estimated similarity to the first document of their group is at
+     * least the threshold, so every document deleted by -delete is that similar to the one kept. For
+     * each band the documents are bucketed by the hash of their rows, and the bucket keeps one entry
+     * per cluster: a document is compared with the first document of each cluster in its bucket, not
+     * with all the members, and copies that fall in the same bucket in every band cost one comparison.
+     * Two clusters are joined only if every member of the higher one is similar to the lower first
+     * document. Returns, for each docID, the lowest docID of its cluster.
+     */
+    static int[] cluster(int[][] signatures, int bands, int rows, double threshold) {
+        int[] root = new int[signatures.length];
+        for (int i = 0; i < root.length; i++) {
+            root[i] = i;
+        }
+        //Documents of each cluster besides its root, only for the clusters with more than one.
+        Map<Integer, List<Integer>> members = new HashMap<>();
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+        List<Integer> tested = new ArrayList<>();
+        for (int band = 0; band < bands; band++) {
+            buckets.clear();
+            for (int doc = 0; doc < signatures.length; doc++) {
+                int[] signature = signatures[doc];
+                if (signature == null) continue;
+                long key = band;
+                for (int r = band * rows; r < (band + 1) * rows; r++) {
+                    key = key * 0x9E3779B97F4A7C15L + signature[r];
+                }
+                List<Integer> bucket = buckets.computeIfAbsent(key, k -> new ArrayList<>());
+                tested.clear();
+                for (int entry : bucket) {
+                    //An entry may have been joined to a lower cluster since it was added.
+                    int other = root[entry];
+                    int own = root[doc];
+                    if (other == own || tested.contains(other)) continue;
+                    tested.add(other);
+                    int keep = Math.min(own, other);
+                    int join = Math.max(own, other);
+                    if (similarToAll(signatures, members, keep, join, threshold)) {
+                        List<Integer> kept = members.computeIfAbsent(keep, k -> new ArrayList<>());
+                        List<Integer> joined = members.remove(join);
+                        root[join] = keep;
+                        kept.add(join);
+                        if (joined != null) {
+                            for (int m : joined) {
+                                root[m] = keep;
+                            }
+                            kept.addAll(joined);
+                        }
+                    }
+                }
+                if (!bucket.contains(root[doc])) {
+                    bucket.add(root[doc]);
+                }
+            }
+        }
+        return root;
+    }
+
+    /** Whether the root join and all its members are similar enough to the root keep. */
+    private static boolean similarToAll(int[][] signatures, Map<Integer, List<Integer>> members, int keep, int join, double threshold) {
+        if (similarity(signatures[keep], signatures[join]) < threshold) {
+            return false;
+        }
+        for (int m : members.getOrDefault(join, List.of())) {
+            if (similarity(signatures[keep], signatures[m]) < threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String path(IndexReader reader, int doc) throws IOException {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("path");
+        reader.document(doc, visitor);
+        return visitor.getDocument().get("path");
+    }
+}
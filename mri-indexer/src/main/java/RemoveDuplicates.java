@@ -1,13 +1,23 @@
-import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class RemoveDuplicates {
     //Allows to remove to archives with the same exact content.
@@ -16,7 +26,9 @@ public class RemoveDuplicates {
     public static void main (String[] args) throws IOException {
         String indexPath = "index";
         String outPath = "indexNoDup";
-        String usage = "Arguments: [-index INDEX_PATH]\n\n";
+        boolean inPlace = false;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String usage = "Arguments: [-index INDEX_PATH] [-out OUT_PATH] [-inPlace] [-numThreads N]\n\n";
         for (int i = 0; i < args.length; i++) {
 
             switch (args[i]) {
@@ -26,34 +38,196 @@ public class RemoveDuplicates {
                 case "-out":
                     outPath = args[++i];
                     break;
+                case "-inPlace":
+                    //The duplicates are deleted from INDEX_PATH, no copy is made.
+                    inPlace = true;
+                    break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
                 default:
                     System.out.println("Usage: "+usage);
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
         }
-        Directory dir = FSDirectory.open(Paths.get(indexPath));
-        Directory outDir = FSDirectory.open(Paths.get(outPath));
-        IndexWriterConfig iwc = new IndexWriterConfig();
-        IndexWriter writer = new IndexWriter(outDir, iwc);
-        IndexReader reader = DirectoryReader.open(dir);
-        int numDocs = reader.numDocs();
-        List<String> contentsList = new ArrayList<>();
-        for (int i = 0; i < numDocs; i++) {
-            Document doc = reader.document(i);
-            String hash = doc.get("hash");
-            if (hash != null) {
-                if (!contentsList.contains(hash)) {
-                    contentsList.add(hash);
-                    writer.addDocument(doc);
+        //A sharded index is deduplicated as a whole, the copies of a file can be in different shards.
+        int shards = ShardedIndex.shardCount(Paths.get(indexPath));
+        int originalDocs;
+        try (IndexReader readerfin = ShardedIndex.open(Paths.get(indexPath))) {
+            originalDocs = readerfin.numDocs();
+        }
+
+        IndexWriter[] writers = new IndexWriter[Math.max(1, shards)];
+        for (int i = 0; i < writers.length; i++) {
+            Directory dir = FSDirectory.open(shards == 0 ? Paths.get(indexPath) : ShardedIndex.shard(Paths.get(indexPath), i));
+            //No merges while deleting, the docIDs of the reader must stay valid for tryDeleteDocument.
+            IndexWriterConfig iwc = new IndexWriterConfig();
+            iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+            if (inPlace) {
+                iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+                writers[i] = new IndexWriter(dir, iwc);
+            } else {
+                //The segments are copied as they are, so the fields that are not stored (contents) are kept.
+                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+                Path out = shards == 0 ? Paths.get(outPath) : ShardedIndex.shard(Paths.get(outPath), i);
+                writers[i] = new IndexWriter(FSDirectory.open(out), iwc);
+                writers[i].addIndexes(dir);
+            }
+        }
+        if (!inPlace) {
+            ShardedIndex.writeShardCount(Paths.get(outPath), shards);
+        }
+        int deleted = deleteDuplicates(writers, numThreads);
+        for (IndexWriter writer : writers) {
+            if (!inPlace) {
+                //The copy is new, it can be compacted right away.
+                writer.getConfig().setMergePolicy(new TieredMergePolicy());
+                writer.forceMergeDeletes();
+            }
+            writer.close();
+        }
+
+        System.out.println("Original Index has " + originalDocs + " documents.  Path: " + indexPath);
+        String resultPath = inPlace ? indexPath : outPath;
+        try (IndexReader readerfin = ShardedIndex.open(Path.of(resultPath))) {
+            System.out.println(deleted + " duplicates removed, index without duplicates has " + readerfin.numDocs() + " documents.   Path: " + resultPath);
+        }
+    }
+
+    /**
+     * Deletes every live document whose hash was already seen in a document with a lower docID.
+     * If the hash has sorted doc values (IndexFiles.hasHashDocValues) the documents are grouped by hash ordinal
+     * in numThreads threads; older indexes, without doc values, are read from the stored fields.
+     * With several writers (shards) the docIDs are global over all of them, in shard order.
+     */
+    static int deleteDuplicates(IndexWriter[] writers, int numThreads) throws IOException {
+        try (IndexReader reader = ShardedIndex.open(writers)) {
+            int[] duplicates = IndexFiles.hasHashDocValues(reader)
+                    ? duplicatesFromDocValues(reader, numThreads)
+                    : duplicatesFromStoredFields(reader);
+            //The deletes are cheap, there is no need to do them in parallel.
+            for (int doc : duplicates) {
+                if (ShardedIndex.tryDeleteDocument(writers, reader, doc) == -1) {
+                    throw new IllegalStateException("could not delete document " + doc);
                 }
             }
+            return duplicates.length;
+        }
+    }
+
+    //Documents of a segment read by one task. Small enough to split a single big segment.
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * The hashes of all the segments are mapped to global ordinals, so two documents are duplicates
+     * when they have the same ordinal. A first pass keeps the lowest docID of each ordinal, a second
+     * one collects the rest. Both passes only read the doc values, never the stored documents.
+     */
+    private static int[] duplicatesFromDocValues(IndexReader reader, int numThreads) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        if (leaves.isEmpty()) {
+            return new int[0];
         }
-        writer.close();
-        try (IndexReader readerfin = DirectoryReader.open(FSDirectory.open(Path.of(indexPath)))) {
-            System.out.println("Original Index has " + readerfin.numDocs() + " documents.  Path: " + indexPath);
+        SortedDocValues[] values = new SortedDocValues[leaves.size()];
+        for (int i = 0; i < values.length; i++) {
+            //Empty for a segment without hashes, it has no duplicates.
+            values[i] = DocValues.getSorted(leaves.get(i).reader(), "hash");
         }
-        try (IndexReader readerfin = DirectoryReader.open(FSDirectory.open(Path.of(outPath)))) {
-            System.out.println("New Index without duplicates has " + readerfin.numDocs() + " documents.   Path: " + outPath);
+        OrdinalMap ordinalMap = OrdinalMap.build(null, values, PackedInts.DEFAULT);
+        AtomicIntegerArray first = new AtomicIntegerArray((int) ordinalMap.getValueCount());
+        for (int i = 0; i < first.length(); i++) {
+            first.set(i, Integer.MAX_VALUE);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            runChunks(executor, leaves, ordinalMap, (ord, doc) -> {
+                int previous;
+                while ((previous = first.get(ord)) > doc && !first.compareAndSet(ord, previous, doc)) ;
+                return false;
+            });
+            return runChunks(executor, leaves, ordinalMap, (ord, doc) -> first.get(ord) != doc);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Called for each live document with a hash, with its global ordinal and global docID. */
+    private interface DocVisitor {
+        boolean isDuplicate(int globalOrd, int globalDoc);
+    }
+
+    private static int[] runChunks(ExecutorService executor, List<LeafReaderContext> leaves,
+                                   OrdinalMap ordinalMap, DocVisitor visitor) throws IOException {
+        List<Future<int[]>> futures = new ArrayList<>();
+        for (int l = 0; l < leaves.size(); l++) {
+            LeafReaderContext leaf = leaves.get(l);
+            LongValues globalOrds = ordinalMap.getGlobalOrds(l);
+            for (int start = 0; start < leaf.reader().maxDoc(); start += CHUNK) {
+                int from = start;
+                int to = Math.min(leaf.reader().maxDoc(), start + CHUNK);
+                futures.add(executor.submit(() -> {
+                    //Each task needs its own iterator, they are not thread safe.
+                    SortedDocValues hashes = DocValues.getSorted(leaf.reader(), "hash");
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    int[] found = new int[16];
+                    int count = 0;
+                    for (int doc = hashes.advance(from); doc < to; doc = hashes.nextDoc()) {
+                        if (liveDocs != null && !liveDocs.get(doc)) continue;
+                        int globalDoc = leaf.docBase + doc;
+                        if (visitor.isDuplicate((int) globalOrds.get(hashes.ordValue()), globalDoc)) {
+                            if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                            found[count++] = globalDoc;
+                        }
+                    }
+                    return Arrays.copyOf(found, count);
+                }));
+            }
+        }
+        //The results are copied once, into an array of the size of all of them.
+        int[][] results = new int[futures.size()][];
+        int total = 0;
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = futures.get(i).get();
+                total += results[i].length;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        int[] duplicates = new int[total];
+        int length = 0;
+        for (int[] found : results) {
+            System.arraycopy(found, 0, duplicates, length, found.length);
+            length += found.length;
+        }
+        return duplicates;
+    }
+
+    /** Indexes without doc values: the hashes are read from the stored fields, in a single thread. */
+    private static int[] duplicatesFromStoredFields(IndexReader reader) throws IOException {
+        HashRegistry seen = new HashRegistry();
+        int[] duplicates = new int[16];
+        int count = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            //maxDoc and not numDocs: the deleted documents are skipped, not the last ones.
+            Bits liveDocs = leafReader.getLiveDocs();
+            for (int i = 0; i < leafReader.maxDoc(); i++) {
+                if (liveDocs != null && !liveDocs.get(i)) continue;
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("hash");
+                leafReader.document(i, visitor);
+                String hash = visitor.getDocument().get("hash");
+                if (hash != null && !seen.add(Base64.getDecoder().decode(hash))) {
+                    if (count == duplicates.length) duplicates = Arrays.copyOf(duplicates, count * 2);
+                    duplicates[count++] = leaf.docBase + i;
+                }
+            }
         }
+        return Arrays.copyOf(duplicates, count);
     }
 }
@@ -0,0 +1,365 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SearchFiles {
+    //Replays the queries of a file against an index created by IndexFiles, with N clients at the same
+    //time, and reports the throughput and the latency. The index is opened once with a SearcherManager.
+    //
+    //One query per line, the clauses of a line joined by " AND " must all match:
+    //  words                      contents, analyzed as when indexing (any word)
+    //  contents:words             the same
+    //  path:/docs/a.txt           exact path, path:/docs/* all the paths with that prefix
+    //  hash:BASE64                files with that SHA-256
+    //  modified:FROM..TO          last modified time, millis or dates (2023-01-31), * for no limit
+    //  size:FROM..TO              size in bytes                  (only indexes with -schema compact)
+    //  creationTime:FROM..TO, lastAccessTime:FROM..TO, lastModifiedTime:FROM..TO   (the same)
+    //Empty lines and lines starting with # are skipped.
+    public static void main(String[] args) throws Exception {
+        String indexPath = "index";
+        String queriesPath = null;
+        int clients = 1;
+        int searchThreads = 0;
+        int top = 10;
+        String sortField = null;
+        int repeat = 1;
+        int warmup = 0;
+        int cacheSize = 0;
+        int refreshSeconds = 0;
+        boolean print = false;
+        String usage = "Arguments: [-index INDEX_PATH] -queries QUERIES_PATH [-clients N] [-searchThreads N]"
+                + " [-top N] [-repeat N] [-warmup N] [-cache MAX_QUERIES] [-refreshSeconds SECONDS] [-print] [-sort FIELD]\n\n";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-queries":
+                    queriesPath = args[++i];
+                    break;
+                case "-clients":
+                    //Threads sending queries at the same time.
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "-searchThreads":
+                    //Threads of the IndexSearcher, each query is searched on several segments at once.
+                    searchThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                case "-repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "-warmup":
+                    //Passes over the queries that are not measured.
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-cache":
+                    //Results of the last queries, until the index changes.
+                    cacheSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-refreshSeconds":
+                    //Sees the commits of an IndexFiles -watch running at the same time.
+                    refreshSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-sort":
+                    //Highest value first instead of by score: size, and modified and the dates with -schema compact.
+                    //The default schema indexes modified only as a point, without doc values to sort by.
+                    sortField = args[++i];
+                    break;
+                case "-print":
+                    //The results of each query, once.
+                    print = true;
+                    break;
+                default:
+                    System.out.println("Usage: " + usage);
+                    throw new IllegalArgumentException("unknown parameter " + args[i]);
+            }
+        }
+        if (queriesPath == null || clients <= 0 || top <= 0) {
+            System.out.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        Analyzer analyzer = new StandardAnalyzer();
+        List<String> lines = new ArrayList<>();
+        List<Query> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(queriesPath), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            lines.add(line);
+            queries.add(parse(line, analyzer));
+        }
+        if (queries.isEmpty()) {
+            System.out.println("No queries in " + queriesPath);
+            System.exit(1);
+        }
+
+        ExecutorService searchExecutor = searchThreads > 0 ? Executors.newFixedThreadPool(searchThreads) : null;
+        //A sharded index is searched as one, each shard is reopened only when it changes.
+        ReferenceManager<IndexSearcher> searcherManager = ShardedIndex.searcherManager(Paths.get(indexPath), new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(org.apache.lucene.index.IndexReader reader, org.apache.lucene.index.IndexReader previousReader) {
+                return new IndexSearcher(reader, searchExecutor);
+            }
+        });
+        if (sortField != null) {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                FieldInfo info = FieldInfos.getMergedFieldInfos(searcher.getIndexReader()).fieldInfo(sortField);
+                if (info != null && info.getDocValuesType() != DocValuesType.NUMERIC) {
+                    System.out.println("Cannot sort by '" + sortField + "': the field has no numeric doc values in '" + indexPath
+                            + "' (modified and the dates have them only in an index built with -schema compact)");
+                    System.exit(1);
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+            sort = new Sort(new SortField(sortField, SortField.Type.LONG, true));
+        }
+        ScheduledExecutorService refresher = null;
+        if (refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor();
+            refresher.scheduleAtFixedRate(() -> {
+                try {
+                    searcherManager.maybeRefresh();
+                } catch (IOException e) {
+                    System.err.println("WARNING: could not refresh the searcher: " + e);
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+        ResultCache cache = cacheSize > 0 ? new ResultCache(cacheSize) : null;
+
+        if (print) {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                for (int q = 0; q < queries.size(); q++) {
+                    TopDocs results = search(searcher, queries.get(q), top);
+                    System.out.println(lines.get(q) + "  ->  " + queries.get(q) + "  (" + results.totalHits + ")");
+                    for (ScoreDoc hit : results.scoreDocs) {
+                        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("path");
+                        searcher.getIndexReader().document(hit.doc, visitor);
+                        System.out.format(Locale.ROOT, "  %-8d %.4f %s%n", hit.doc, hit.score, visitor.getDocument().get("path"));
+                    }
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+        }
+
+        for (int pass = 0; pass < warmup; pass++) {
+            run(searcherManager, queries, clients, top, cache, 1);
+        }
+        long start = System.nanoTime();
+        long[] latencies = run(searcherManager, queries, clients, top, cache, repeat);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.format(Locale.ROOT, "%d queries, %d clients, %.3f seconds, %.1f QPS%n",
+                latencies.length, clients, seconds, latencies.length / seconds);
+        System.out.format(Locale.ROOT, "latency micros: p50 %d, p95 %d, p99 %d, max %d%n",
+                percentile(latencies, 0.50) / 1000, percentile(latencies, 0.95) / 1000,
+                percentile(latencies, 0.99) / 1000, latencies[latencies.length - 1] / 1000);
+        if (cache != null) {
+            System.out.println("result cache: " + cache.hits.get() + " hits, " + cache.misses.get() + " misses");
+        }
+
+        if (refresher != null) refresher.shutdownNow();
+        searcherManager.close();
+        if (searchExecutor != null) searchExecutor.shutdown();
+    }
+
+    /**
+     * Each client goes over all the queries repeat times, starting at a different query so the
+     * clients do not send the same query at the same time. Returns the latency of every query.
+     */
+    private static long[] run(ReferenceManager<IndexSearcher> searcherManager, List<Query> queries, int clients, int top,
+                              ResultCache cache, int repeat) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int offset = (int) ((long) c * queries.size() / clients);
+                futures.add(executor.submit(() -> {
+                    long[] latencies = new long[queries.size() * repeat];
+                    int n = 0;
+                    for (int r = 0; r < repeat; r++) {
+                        for (int q = 0; q < queries.size(); q++) {
+                            Query query = queries.get((q + offset) % queries.size());
+                            long t0 = System.nanoTime();
+                            IndexSearcher searcher = searcherManager.acquire();
+                            try {
+                                if (cache != null) {
+                                    cache.search(searcher, query, top);
+                                } else {
+                                    search(searcher, query, top);
+                                }
+                            } finally {
+                                searcherManager.release(searcher);
+                            }
+                            latencies[n++] = System.nanoTime() - t0;
+                        }
+                    }
+                    return latencies;
+                }));
+            }
+            long[] all = new long[0];
+            for (Future<long[]> future : futures) {
+                long[] latencies = future.get();
+                int length = all.length;
+                all = Arrays.copyOf(all, length + latencies.length);
+                System.arraycopy(latencies, 0, all, length, latencies.length);
+            }
+            return all;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    //-sort, null to sort by score.
+    private static Sort sort = null;
+
+    private static TopDocs search(IndexSearcher searcher, Query query, int top) throws IOException {
+        return sort == null ? searcher.search(query, top) : searcher.search(query, top, sort);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(sorted.length * p) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+
+    /** Query of a line of the queries file, see the format at the start of main. */
+    static Query parse(String line, Analyzer analyzer) throws IOException {
+        String[] clauses = line.split(" AND ");
+        if (clauses.length == 1) {
+            return parseClause(clauses[0].trim(), analyzer);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (String clause : clauses) {
+            builder.add(parseClause(clause.trim(), analyzer), BooleanClause.Occur.MUST);
+        }
+        return builder.build();
+    }
+
+    private static Query parseClause(String clause, Analyzer analyzer) throws IOException {
+        int colon = clause.indexOf(':');
+        String field = colon > 0 ? clause.substring(0, colon) : "contents";
+        String value = colon > 0 ? clause.substring(colon + 1).trim() : clause;
+        switch (field) {
+            case "path":
+                if (value.endsWith("*")) {
+                    return new PrefixQuery(new Term("path", value.substring(0, value.length() - 1)));
+                }
+                return new TermQuery(new Term("path", value));
+            case "hash":
+                return new TermQuery(new Term("hash", value));
+            case "modified":
+            case "size":
+            case "creationTime":
+            case "lastAccessTime":
+            case "lastModifiedTime":
+                int dots = value.indexOf("..");
+                if (dots < 0) {
+                    throw new IllegalArgumentException(field + " needs a range FROM..TO: " + clause);
+                }
+                return LongPoint.newRangeQuery(field,
+                        parseTime(value.substring(0, dots).trim(), Long.MIN_VALUE),
+                        parseTime(value.substring(dots + 2).trim(), Long.MAX_VALUE));
+            case "contents":
+                //Any of the words, the documents with more of them first.
+                BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                try (TokenStream tokens = analyzer.tokenStream("contents", value)) {
+                    CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+                    tokens.reset();
+                    while (tokens.incrementToken()) {
+                        builder.add(new TermQuery(new Term("contents", term.toString())), BooleanClause.Occur.SHOULD);
+                    }
+                    tokens.end();
+                }
+                return builder.build();
+            default:
+                //Not a field of the index, the whole clause are words of the contents.
+                return parseClause("contents:" + clause, analyzer);
+        }
+    }
+
+    private static long parseTime(String value, long open) {
+        if (value.isEmpty() || value.equals("*")) {
+            return open;
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        if (value.contains("T")) {
+            return Instant.parse(value).toEpochMilli();
+        }
+        return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Top documents of the last queries. The key has the version of the reader, so after a refresh
+     * the old results are not used and are evicted as the least recently used.
+     */
+    private static class ResultCache {
+        private final Map<String, TopDocs> results;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        ResultCache(int maxQueries) {
+            results = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TopDocs> eldest) {
+                    return size() > maxQueries;
+                }
+            };
+        }
+
+        TopDocs search(IndexSearcher searcher, Query query, int top) throws IOException {
+            long version = ShardedIndex.version(searcher.getIndexReader());
+            String key = version + "/" + top + "/" + sort + "/" + query;
+            TopDocs cached;
+            synchronized (results) {
+                cached = results.get(key);
+            }
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            misses.incrementAndGet();
+            TopDocs topDocs = SearchFiles.search(searcher, query, top);
+            synchronized (results) {
+                results.put(key, topDocs);
+            }
+            return topDocs;
+        }
+    }
+}
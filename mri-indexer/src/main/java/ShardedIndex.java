@@ -0,0 +1,234 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An index written by IndexFiles -shards N: N independent indexes in INDEX_PATH/shard-0 ...
+ * shard-(N-1), and a file with N so the tools know which folders belong to the set. Each file goes
+ * to the shard of the hash of its path, so the same file always lands in the same shard.
+ *
+ * The tools open a shard set as a single MultiReader: the docIDs are global (shard 0 first) and
+ * docFreq and the other statistics add up the shards, so the scores are the same as in a single index.
+ * A folder without the file is a normal index and is opened as always.
+ */
+public class ShardedIndex {
+    public static final String SHARDS_FILE = "mri-shards";
+
+    /** Number of shards of the index, 0 if it is not sharded. */
+    public static int shardCount(Path indexPath) throws IOException {
+        Path file = indexPath.resolve(SHARDS_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        return Integer.parseInt(Files.readString(file, StandardCharsets.UTF_8).trim());
+    }
+
+    /** Records the number of shards, or with 0 marks the folder as a normal index. */
+    public static void writeShardCount(Path indexPath, int shards) throws IOException {
+        Path file = indexPath.resolve(SHARDS_FILE);
+        if (shards <= 0) {
+            Files.deleteIfExists(file);
+        } else {
+            Files.createDirectories(indexPath);
+            Files.writeString(file, Integer.toString(shards), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static Path shard(Path indexPath, int shard) {
+        return indexPath.resolve("shard-" + shard);
+    }
+
+    /** The index folders: the shards in order, or the folder itself if it is not sharded. */
+    public static List<Path> directories(Path indexPath) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        int shards = shardCount(indexPath);
+        if (shards == 0) {
+            directories.add(indexPath);
+        }
+        for (int i = 0; i < shards; i++) {
+            directories.add(shard(indexPath, i));
+        }
+        return directories;
+    }
+
+    /** Shard of a file. String.hashCode is fixed by the Java spec, the routing never changes. */
+    public static int shardOf(String path, int shards) {
+        return Math.floorMod(path.hashCode(), shards);
+    }
+
+    public static boolean exists(Path indexPath) throws IOException {
+        for (Path directory : directories(indexPath)) {
+            if (!DirectoryReader.indexExists(FSDirectory.open(directory))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Opens an index, sharded or not, as one reader. */
+    public static IndexReader open(Path indexPath) throws IOException {
+        List<Path> directories = directories(indexPath);
+        if (shardCount(indexPath) == 0) {
+            return DirectoryReader.open(FSDirectory.open(indexPath));
+        }
+        DirectoryReader[] shards = new DirectoryReader[directories.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = DirectoryReader.open(FSDirectory.open(directories.get(i)));
+            }
+            return new ShardReader(shards);
+        } catch (IOException | RuntimeException e) {
+            for (DirectoryReader shard : shards) {
+                if (shard != null) shard.close();
+            }
+            throw e;
+        }
+    }
+
+    /** Near-real-time reader of the writers of the shards, in shard order. */
+    public static IndexReader open(IndexWriter[] writers) throws IOException {
+        if (writers.length == 1) {
+            return DirectoryReader.open(writers[0]);
+        }
+        DirectoryReader[] shards = new DirectoryReader[writers.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = DirectoryReader.open(writers[i]);
+        }
+        return new ShardReader(shards);
+    }
+
+    /**
+     * IndexWriter.tryDeleteDocument with a global docID of a reader opened with open(writers): the
+     * document is deleted by the writer of its shard.
+     */
+    public static long tryDeleteDocument(IndexWriter[] writers, IndexReader reader, int docID) throws IOException {
+        if (!(reader instanceof ShardReader)) {
+            return writers[0].tryDeleteDocument(reader, docID);
+        }
+        ShardReader shards = (ShardReader) reader;
+        int shard = shards.shardOf(docID);
+        return writers[shard].tryDeleteDocument(shards.shards[shard], docID - shards.base(shard));
+    }
+
+    /** Version of the reader, it grows with every change of any of the shards. */
+    public static long version(IndexReader reader) {
+        if (reader instanceof ShardReader) {
+            long version = 0;
+            for (DirectoryReader shard : ((ShardReader) reader).shards) {
+                version += shard.getVersion();
+            }
+            return version;
+        }
+        return ((DirectoryReader) reader).getVersion();
+    }
+
+    /** SearcherManager over an index on disk, sharded or not. */
+    public static ReferenceManager<IndexSearcher> searcherManager(Path indexPath, SearcherFactory factory) throws IOException {
+        if (shardCount(indexPath) == 0) {
+            return new SearcherManager(FSDirectory.open(indexPath), factory);
+        }
+        return new ShardSearcherManager((ShardReader) open(indexPath), factory);
+    }
+
+    /** SearcherManager over the near-real-time readers of the writers of the shards. */
+    public static ReferenceManager<IndexSearcher> searcherManager(IndexWriter[] writers, SearcherFactory factory) throws IOException {
+        if (writers.length == 1) {
+            return new SearcherManager(writers[0], factory);
+        }
+        return new ShardSearcherManager((ShardReader) open(writers), factory);
+    }
+
+    /** MultiReader that owns its shards and knows which shard each docID belongs to. */
+    static final class ShardReader extends MultiReader {
+        final DirectoryReader[] shards;
+
+        //Who passes the shards gives away one reference. MultiReader takes its own one and gives it
+        //back when this reader is closed, close() would only release a shard shared with the reader
+        //of a refresh once.
+        ShardReader(DirectoryReader[] shards) throws IOException {
+            super(shards, false);
+            this.shards = shards;
+            for (DirectoryReader shard : shards) {
+                shard.decRef();
+            }
+        }
+
+        int shardOf(int docID) {
+            return readerIndex(docID);
+        }
+
+        int base(int shard) {
+            return readerBase(shard);
+        }
+    }
+
+    /** As SearcherManager, reopening only the shards that changed. */
+    private static final class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+        private final SearcherFactory factory;
+
+        ShardSearcherManager(ShardReader reader, SearcherFactory factory) throws IOException {
+            this.factory = factory == null ? new SearcherFactory() : factory;
+            current = SearcherManager.getSearcher(this.factory, reader, null);
+        }
+
+        @Override
+        protected void decRef(IndexSearcher reference) throws IOException {
+            reference.getIndexReader().decRef();
+        }
+
+        @Override
+        protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+            ShardReader old = (ShardReader) referenceToRefresh.getIndexReader();
+            DirectoryReader[] shards = new DirectoryReader[old.shards.length];
+            boolean changed = false;
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    DirectoryReader reopened = DirectoryReader.openIfChanged(old.shards[i]);
+                    if (reopened == null) {
+                        //The new reader shares the shard, it needs its own reference.
+                        old.shards[i].incRef();
+                        shards[i] = old.shards[i];
+                    } else {
+                        shards[i] = reopened;
+                        changed = true;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                for (DirectoryReader shard : shards) {
+                    if (shard != null) shard.decRef();
+                }
+                throw e;
+            }
+            if (!changed) {
+                for (DirectoryReader shard : shards) {
+                    shard.decRef();
+                }
+                return null;
+            }
+            return SearcherManager.getSearcher(factory, new ShardReader(shards), old);
+        }
+
+        @Override
+        protected boolean tryIncRef(IndexSearcher reference) {
+            return reference.getIndexReader().tryIncRef();
+        }
+
+        @Override
+        protected int getRefCount(IndexSearcher reference) {
+            return reference.getIndexReader().getRefCount();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Min-heap of the N best scored terms of a document, on primitive arrays. The heap only moves slot
+ * numbers; the score, tf, df and bytes of each term stay in their slot, and the bytes are copied into
+ * a buffer that is reused when the slot is replaced. Adding a term allocates nothing once the buffers
+ * are big enough, and the terms are turned into strings only when the heap is drained.
+ *
+ * With the same score, the term added later is the lower one. The terms of a document are added in
+ * term order, so ties keep the first terms in order of the terms dictionary.
+ */
+public class TermScoreHeap {
+    private final int capacity;
+    private final int[] heap;
+    private final double[] scores;
+    private final int[] tfs;
+    private final int[] dfs;
+    private final int[] sequence;
+    private final BytesRef[] terms;
+    private int size = 0;
+    private int added = 0;
+
+    public TermScoreHeap(int capacity) {
+        this.capacity = capacity;
+        heap = new int[capacity];
+        scores = new double[capacity];
+        tfs = new int[capacity];
+        dfs = new int[capacity];
+        sequence = new int[capacity];
+        terms = new BytesRef[capacity];
+        for (int i = 0; i < capacity; i++) {
+            terms[i] = new BytesRef();
+        }
+    }
+
+    /** Whether a term with this score would be kept. */
+    public boolean competitive(double score) {
+        return capacity > 0 && (size < capacity || score > scores[heap[0]]);
+    }
+
+    /** Adds a term, replacing the lowest one if the heap is full. Call competitive first. */
+    public void add(BytesRef term, int tf, int df, double score) {
+        int slot;
+        if (size < capacity) {
+            slot = size;
+            heap[size] = slot;
+            set(slot, term, tf, df, score);
+            upHeap(size++);
+        } else {
+            slot = heap[0];
+            set(slot, term, tf, df, score);
+            downHeap(0);
+        }
+    }
+
+    private void set(int slot, BytesRef term, int tf, int df, double score) {
+        BytesRef copy = terms[slot];
+        copy.bytes = ArrayUtil.grow(copy.bytes, term.length);
+        System.arraycopy(term.bytes, term.offset, copy.bytes, 0, term.length);
+        copy.length = term.length;
+        tfs[slot] = tf;
+        dfs[slot] = df;
+        scores[slot] = score;
+        sequence[slot] = added++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes the lowest term and returns its slot, valid for the accessors until the next call to
+     * add. Once pop is called the heap has to be cleared before adding again.
+     */
+    public int pop() {
+        int slot = heap[0];
+        heap[0] = heap[--size];
+        downHeap(0);
+        return slot;
+    }
+
+    public void clear() {
+        size = 0;
+        added = 0;
+    }
+
+    public BytesRef term(int slot) {
+        return terms[slot];
+    }
+
+    public int tf(int slot) {
+        return tfs[slot];
+    }
+
+    public int df(int slot) {
+        return dfs[slot];
+    }
+
+    public double score(int slot) {
+        return scores[slot];
+    }
+
+    private boolean lessThan(int a, int b) {
+        if (scores[a] != scores[b]) {
+            return scores[a] < scores[b];
+        }
+        return sequence[a] > sequence[b];
+    }
+
+    private void upHeap(int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!lessThan(slot, heap[parent])) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private void downHeap(int i) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && lessThan(heap[child + 1], heap[child])) child++;
+            if (!lessThan(heap[child], slot)) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = slot;
+    }
+}
@@ -4,10 +4,24 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.PriorityQueue;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 public class TopTermsInDocs {
     public static void main(String[] args) throws IOException {
@@ -17,8 +31,22 @@ public class TopTermsInDocs {
         int rango2 = -1;
         int top = -1;
         String outfile = "output.txt";
-        String usage = "Arguments: [-index INDEX_PATH] [-docID docID1-docID2] [-top N] [-outfile OUTFILE_PATH]\n\n";
+        int dfCacheSize = 1 << 20;
+        boolean dfPreload = false;
+        int numThreads = 1;
+        String mode = "vectors";
+        String format = "text";
+        boolean gzip = false;
+        boolean quiet = false;
+        String usage = "Arguments: [-index INDEX_PATH] [-docID docID1-docID2] [-top N] [-outfile OUTFILE_PATH]"
+                + " [-dfCache MAX_TERMS] [-dfPreload] [-numThreads N] [-mode vectors|postings]"
+                + " [-format text|csv|jsonl|binary] [-gzip] [-quiet]\n\n";
         //No range: We check all the files
+        //Mode vectors: the term vector of each document is read, needs IndexFiles -contentsTermVectors.
+        //Mode postings: one pass over the terms and postings of contents, works on any index. With
+        //-numThreads each thread makes its own pass for its part of the range.
+        //Format: text is the report of always, csv and jsonl have the full score for other programs,
+        //binary is described in Output. An outfile ending in .gz is always compressed.
         //No outfile: Then it will be by default output.txt
         //Default index: index
         for (int i = 0; i < args.length; i++) {
@@ -37,67 +65,335 @@ public class TopTermsInDocs {
                 case "-outfile":
                     outfile = args[++i];
                     break;
+                case "-dfCache":
+                    //Number of document frequencies kept in memory.
+                    dfCacheSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-dfPreload":
+                    //Read the df of all the terms at the start, useful when the range is most of the index.
+                    dfPreload = true;
+                    break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-mode":
+                    mode = args[++i];
+                    break;
+                case "-format":
+                    format = args[++i];
+                    break;
+                case "-gzip":
+                    gzip = true;
+                    break;
+                case "-quiet":
+                    //Nothing is printed in the console, only in the outfile.
+                    quiet = true;
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
         }
 
-        if (indexPath==null||top==-1){
+        if (indexPath==null||top==-1||!(mode.equals("vectors")||mode.equals("postings"))
+                ||!List.of("text", "csv", "jsonl", "binary").contains(format)){
             System.out.println(usage);
             System.exit(0);
         }
 
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(java.nio.file.Path.of(indexPath)));
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outfile));
+        //A sharded index is read as one, with global docIDs and the df of all the shards.
+        IndexReader reader = ShardedIndex.open(java.nio.file.Path.of(indexPath));
+        Output writer = new Output(outfile, format, gzip || outfile.endsWith(".gz"), quiet);
+        DocFreqCache docFreqs = new DocFreqCache(reader, "contents", dfCacheSize);
+        if (dfPreload && !docFreqs.preload()) {
+            System.err.println("The index has more than " + dfCacheSize / 2 + " terms, the df are read as needed");
+        }
 
         if(rango1==-1&&rango2==-1){
             rango1 = 0;
             rango2 = reader.maxDoc()-1;
         }
 
-        // Search in the range specified.
-        for (int i = rango1; i <= rango2; i++) {
+        if (mode.equals("postings")) {
+            //The range is split in one part per thread, each part walks the terms on its own.
+            int threads = Math.max(1, Math.min(numThreads, rango2 - rango1 + 1));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<List<DocTerms>>> parts = new ArrayList<>();
+            long size = (long) rango2 + 1 - rango1;
+            for (int i = 0; i < threads; i++) {
+                int from = (int) (rango1 + size * i / threads);
+                int to = (int) (rango1 + size * (i + 1) / threads);
+                int n = top;
+                parts.add(executor.submit(() -> topTermsFromPostings(reader, from, to, n)));
+            }
+            try {
+                for (Future<List<DocTerms>> part : parts) {
+                    for (DocTerms doc : get(part)) {
+                        writer.write(doc);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            writer.close();
+            reader.close();
+            return;
+        }
+
+        // Search in the range specified. The range is split in chunks that are scored in parallel,
+        // the results are written in docID order as the chunks finish.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        //Only a few chunks ahead of the one being written, so the memory does not depend on the range.
+        int window = Math.max(1, numThreads) * 4;
+        ArrayDeque<Future<List<DocTerms>>> pending = new ArrayDeque<>();
+        int next = rango1;
+        try {
+            while (next <= rango2 || !pending.isEmpty()) {
+                while (next <= rango2 && pending.size() < window) {
+                    int from = next;
+                    int to = (int) Math.min((long) rango2 + 1, (long) next + CHUNK);
+                    int n = top;
+                    pending.add(executor.submit(() -> topTerms(reader, docFreqs, from, to, n)));
+                    next = to;
+                }
+                for (DocTerms doc : get(pending.poll())) {
+                    writer.write(doc);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Close the writer and reader
+        writer.close();
+        reader.close();
+    }
+
+    //Documents scored by one task.
+    private static final int CHUNK = 64;
+
+    /** Top terms of a document, lowest score first. */
+    private static class DocTerms {
+        final int docID;
+        final TermScore[] terms;
+
+        DocTerms(int docID, TermScore[] terms) {
+            this.docID = docID;
+            this.terms = terms;
+        }
+    }
+
+    /** Top terms of the documents from (inclusive) to (exclusive) that have a term vector. */
+    private static List<DocTerms> topTerms(IndexReader reader, DocFreqCache docFreqs, int from, int to, int top) throws IOException {
+        List<DocTerms> docs = new ArrayList<>();
+        // One heap for all the documents of the chunk.
+        TermScoreHeap heap = new TermScoreHeap(top);
+        for (int i = from; i < to; i++) {
             Terms terms = reader.getTermVector(i, "contents");
 
             if (terms == null) continue;  //If it doesn't exist, goes to the next
 
-            // We used a priority Queue for this.
-            PriorityQueue<TermScore> pq = new PriorityQueue<>(top);
+            heap.clear();
 
             // Loop through the terms and calculate their tf-idf scores
             TermsEnum termsEnum = terms.iterator();
             BytesRef term;
             while ((term = termsEnum.next()) != null) {
-                String termText = term.utf8ToString();
                 int tf = (int) termsEnum.totalTermFreq();
-                int df = reader.docFreq(new Term("contents", term));
+                int df = docFreqs.docFreq(term);
                 double idf = (double) reader.maxDoc() / df;
                 double idflog10 = Math.log10(idf);
                 double tfidflog10 = tf * idflog10;
 
-                // Add the term to the priority queue
-                pq.add(new TermScore(termText, tf, df, tfidflog10));
-                if (pq.size() > top) pq.poll();
+                // Add the term to the heap, only its bytes are copied
+                if (heap.competitive(tfidflog10)) heap.add(term, tf, df, tfidflog10);
             }
+            docs.add(new DocTerms(i, drain(heap)));
+        }
+        return docs;
+    }
 
-            // Print the top terms for the current document
-            System.out.println("docId: " + i);
-            writer.write("docId: " + i + "\n");
-            while (!pq.isEmpty()) {
-                TermScore ts = pq.poll();
-                System.out.format("%-10s -> tf: %-5d df: %-5d tf-idflog10: %.5f%n", ts.term, ts.tf, ts.df, ts.tfidflog10);
-                writer.write(String.format("%-10s -> tf: %-5d df: %-5d tf-idflog10: %.5f%n", ts.term, ts.tf, ts.df, ts.tfidflog10)+ "\n");
+    /**
+     * Same scores as topTerms, computed from the postings of contents instead of the term vectors.
+     * The terms are walked once in order, so each document sees its terms in the same order as in
+     * its term vector and ties are broken the same way. The df comes with the term. Deleted
+     * documents are scored as in the vectors mode.
+     */
+    private static List<DocTerms> topTermsFromPostings(IndexReader reader, int from, int to, int top) throws IOException {
+        List<DocTerms> docs = new ArrayList<>();
+        Terms terms = MultiTerms.getTerms(reader, "contents");
+        if (terms == null || from >= to) {
+            return docs;
+        }
+        //A heap per document of the range, created when the document gets its first term.
+        TermScoreHeap[] heaps = new TermScoreHeap[to - from];
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            int df = termsEnum.docFreq();
+            double idflog10 = Math.log10((double) reader.maxDoc() / df);
+            postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+            for (int doc = postings.advance(from); doc < to; doc = postings.nextDoc()) {
+                TermScoreHeap heap = heaps[doc - from];
+                if (heap == null) {
+                    heap = heaps[doc - from] = new TermScoreHeap(top);
+                }
+                int tf = postings.freq();
+                double tfidflog10 = tf * idflog10;
+                if (heap.competitive(tfidflog10)) heap.add(term, tf, df, tfidflog10);
             }
-            System.out.println();
-            writer.write("\n");
         }
+        for (int i = 0; i < heaps.length; i++) {
+            if (heaps[i] == null) continue;
+            docs.add(new DocTerms(from + i, drain(heaps[i])));
+            heaps[i] = null;
+        }
+        return docs;
+    }
 
-        // Close the writer and reader
-        writer.close();
-        reader.close();
+    /** The terms of the heap, lowest score first. Only here the terms become strings. */
+    private static TermScore[] drain(TermScoreHeap heap) {
+        TermScore[] sorted = new TermScore[heap.size()];
+        for (int j = 0; j < sorted.length; j++) {
+            int slot = heap.pop();
+            sorted[j] = new TermScore(heap.term(slot).utf8ToString(), heap.tf(slot), heap.df(slot), heap.score(slot));
+        }
+        return sorted;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    private static class TermScore implements Comparable<TermScore> {
+    /**
+     * Output of the report, a single buffered stream for the outfile and, unless quiet, the console.
+     * Each line is formatted once. The console always gets the text format, or the csv/jsonl line.
+     *
+     * binary: int magic "MRTT", int version 1, then per document int docId, int number of terms and
+     * per term int length + UTF-8 bytes, int tf, int df, double tf-idflog10 (big endian).
+     */
+    private static class Output {
+        private static final int MAGIC = 0x4D525454;
+        private final String format;
+        private final OutputStream stream;
+        private final Writer text;
+        private final DataOutputStream binary;
+        private final Writer console;
+        private final StringBuilder line = new StringBuilder();
+
+        Output(String outfile, String format, boolean gzip, boolean quiet) throws IOException {
+            this.format = format;
+            OutputStream out = Files.newOutputStream(Paths.get(outfile));
+            //One buffer in front of the compressor, the binary format writes a few bytes at a time.
+            stream = new BufferedOutputStream(gzip ? new GZIPOutputStream(out, 1 << 16) : out, 1 << 16);
+            console = quiet ? null : new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            if (format.equals("binary")) {
+                text = null;
+                binary = new DataOutputStream(stream);
+                binary.writeInt(MAGIC);
+                binary.writeInt(1);
+            } else {
+                text = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+                binary = null;
+                if (format.equals("csv")) {
+                    text.write("docId,term,tf,df,tfidflog10\n");
+                }
+            }
+        }
+
+        // Print the top terms for the current document
+        void write(DocTerms doc) throws IOException {
+            switch (format) {
+                case "csv":
+                    for (TermScore ts : doc.terms) {
+                        line.setLength(0);
+                        line.append(doc.docID).append(',');
+                        appendCsv(line, ts.term);
+                        line.append(',').append(ts.tf).append(',').append(ts.df).append(',').append(ts.tfidflog10).append('\n');
+                        emit(line, line);
+                    }
+                    break;
+                case "jsonl":
+                    line.setLength(0);
+                    line.append("{\"docId\":").append(doc.docID).append(",\"terms\":[");
+                    for (int i = 0; i < doc.terms.length; i++) {
+                        TermScore ts = doc.terms[i];
+                        if (i > 0) line.append(',');
+                        line.append("{\"term\":");
+                        Json.appendString(line, ts.term);
+                        line.append(",\"tf\":").append(ts.tf).append(",\"df\":").append(ts.df)
+                                .append(",\"tfidflog10\":").append(ts.tfidflog10).append('}');
+                    }
+                    line.append("]}\n");
+                    emit(line, line);
+                    break;
+                case "binary":
+                    binary.writeInt(doc.docID);
+                    binary.writeInt(doc.terms.length);
+                    for (TermScore ts : doc.terms) {
+                        byte[] bytes = ts.term.getBytes(StandardCharsets.UTF_8);
+                        binary.writeInt(bytes.length);
+                        binary.write(bytes);
+                        binary.writeInt(ts.tf);
+                        binary.writeInt(ts.df);
+                        binary.writeDouble(ts.tfidflog10);
+                    }
+                    if (console != null) writeText(doc);
+                    break;
+                default:
+                    writeText(doc);
+            }
+        }
+
+        //The text format of always. The outfile has a blank line after each term, the console not.
+        private void writeText(DocTerms doc) throws IOException {
+            String header = "docId: " + doc.docID + "\n";
+            if (text != null) text.write(header);
+            if (console != null) console.write(header);
+            for (TermScore ts : doc.terms) {
+                String formatted = String.format("%-10s -> tf: %-5d df: %-5d tf-idflog10: %.5f%n", ts.term, ts.tf, ts.df, ts.tfidflog10);
+                if (text != null) {
+                    text.write(formatted);
+                    text.write("\n");
+                }
+                if (console != null) console.write(formatted);
+            }
+            if (text != null) text.write("\n");
+            if (console != null) console.write("\n");
+        }
+
+        private void emit(CharSequence toFile, CharSequence toConsole) throws IOException {
+            text.append(toFile);
+            if (console != null) console.append(toConsole);
+        }
+
+        private static void appendCsv(StringBuilder line, String value) {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                line.append(value);
+                return;
+            }
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+
+        void close() throws IOException {
+            if (binary != null) {
+                binary.close();
+            } else {
+                text.close();
+            }
+            if (console != null) console.flush();
+        }
+    }
+
+    private static class TermScore {
         String term;
         int tf;
         int df;
@@ -109,10 +405,5 @@ public class TopTermsInDocs {
             this.df = df;
             this.tfidflog10 = tfidflog10;
         }
-
-        @Override
-        public int compareTo(TermScore other) {
-            return Double.compare(this.tfidflog10, other.tfidflog10);
-        }
     }
 }
\ No newline at end of file
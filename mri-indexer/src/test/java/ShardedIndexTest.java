@@ -0,0 +1,67 @@
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ShardedIndexTest {
+
+    //A refresh reopens only shard 0: shard 1 is shared by the readers of every refresh and must be
+    //released by each of them, and every shard is closed with the manager.
+    @Test
+    public void refreshReleasesEveryShard() throws IOException {
+        IndexWriter[] writers = new IndexWriter[2];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig());
+            addDoc(writers[i], "shard" + i);
+        }
+        ReferenceManager<IndexSearcher> manager = ShardedIndex.searcherManager(writers, null);
+        List<DirectoryReader> seen = new ArrayList<>();
+        DirectoryReader unchanged = shards(manager)[1];
+        for (int refresh = 0; refresh < 3; refresh++) {
+            addDoc(writers[0], "doc" + refresh);
+            manager.maybeRefreshBlocking();
+            DirectoryReader[] shards = shards(manager);
+            assertSame(unchanged, shards[1]);
+            for (DirectoryReader shard : shards) {
+                //Only the current reader holds the shards, the readers of before were released.
+                assertEquals(1, shard.getRefCount());
+                seen.add(shard);
+            }
+        }
+        manager.close();
+        for (DirectoryReader shard : seen) {
+            assertEquals(0, shard.getRefCount());
+        }
+        for (IndexWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    private static DirectoryReader[] shards(ReferenceManager<IndexSearcher> manager) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return ((ShardedIndex.ShardReader) searcher.getIndexReader()).shards;
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    private static void addDoc(IndexWriter writer, String path) throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField("path", path, Field.Store.YES));
+        writer.addDocument(doc);
+    }
+}